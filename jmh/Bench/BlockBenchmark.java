@@ -0,0 +1,25 @@
+package Bench;
+
+import Server.Account;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Block filtering with the viewer blocked by Online.BLOCKERS of the online accounts.
+ */
+public class BlockBenchmark {
+
+    @Benchmark
+    public boolean ifblocked(Online online) {
+        return online.accounts[ThreadLocalRandom.current().nextInt(Online.ONLINE)].ifblocked(online.viewer);
+    }
+
+    // the recipients of a broadcast from the viewer
+    @Benchmark
+    public Object broadcastTargets(Online online) {
+        int viewer = online.viewer.getId();
+        return online.sessions.ids().andNot(Account.blocks().blockedBy(viewer)).without(viewer);
+    }
+}
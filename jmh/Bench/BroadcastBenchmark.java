@@ -0,0 +1,53 @@
+package Bench;
+
+import Server.CompactBitmap;
+import Server.FanOut;
+import Server.Message;
+import Server.OutboundMessage;
+import Server.OutboundQueue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One broadcast through the fan-out lanes, until the last recipient has it queued.
+ */
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({ "1000", "10000", "100000" })
+    public int recipients;
+
+    private FanOut fanOut;
+    private OutboundQueue[] sinks;
+    private CompactBitmap everyone;
+    private int firstId;
+    private final AtomicLong delivered = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setUp(Online online) {
+        fanOut = new FanOut(Runtime.getRuntime().availableProcessors(), 256, Long.MAX_VALUE / 2);
+        sinks = new OutboundQueue[recipients];
+        for (int i = 0; i < recipients; i++) sinks[i] = new OutboundQueue(64, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST, m -> { });
+        CompactBitmap targets = CompactBitmap.EMPTY;
+        for (int i = 0; i < recipients; i++) targets = targets.with(online.accounts[i].getId());
+        everyone = targets;
+        firstId = online.accounts[0].getId();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        OutboundMessage message = new OutboundMessage("0alice: hello everyone\n", new Message("alice", null, "hello everyone"));
+        expected += everyone.cardinality();
+        fanOut.publish(everyone, id -> {
+            sinks[id - firstId].offer(message);
+            delivered.incrementAndGet();
+        });
+        while (delivered.get() < expected) Thread.yield();
+    }
+}
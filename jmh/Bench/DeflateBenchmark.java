@@ -0,0 +1,50 @@
+package Bench;
+
+import Protocol.Frame;
+import Protocol.FrameDeflater;
+import Protocol.Opcode;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * What a writer pays per frame to a client with compression on, repeated frames compress to very little.
+ */
+@State(Scope.Thread)
+public class DeflateBenchmark {
+    private FrameDeflater deflater;
+    private ByteBuffer memo;
+    private ByteBuffer broadcast;
+
+    @Setup
+    public void setUp() throws ProtocolException {
+        deflater = new FrameDeflater(6, 64);
+        memo = ByteBuffer.wrap(new Frame(Opcode.TEXT, "alice: are we still meeting at the usual place on friday?\n").encode());
+        StringBuilder text = new StringBuilder("alice: ");
+        while (text.length() < 2048) text.append("word").append(ThreadLocalRandom.current().nextInt(1000)).append(' ');
+        broadcast = ByteBuffer.wrap(new Frame(Opcode.TEXT, text.toString()).encode());
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("===== " + deflater.summary() + " =====");
+        deflater.end();
+    }
+
+    @Benchmark
+    public Object memoLine() {
+        return deflater.compress(memo.duplicate());
+    }
+
+    @Benchmark
+    public Object broadcast2k() {
+        return deflater.compress(broadcast.duplicate());
+    }
+}
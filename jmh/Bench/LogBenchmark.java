@@ -0,0 +1,66 @@
+package Bench;
+
+import Server.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * What a client thread pays for a log line, the writing is done by the log thread.
+ */
+public class LogBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ToFile {
+        private File file;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("skynett-bench", ".log");
+            Log.configure(Log.Level.INFO, Integer.MAX_VALUE, file, 64 << 20, 1);
+        }
+
+        @TearDown
+        public void tearDown() {
+            new File(file.getPath() + ".1").delete();
+            file.delete();
+        }
+    }
+
+    // 50 lines a second allowed, nearly every line is dropped
+    @State(Scope.Benchmark)
+    public static class Limited {
+        @Setup
+        public void setUp() throws IOException {
+            Log.configure(Log.Level.INFO, 50, null, 0, 0);
+        }
+    }
+
+    @Benchmark
+    public void line(ToFile log) {
+        Log.log(Log.Level.INFO, "(127.0.0.1, 50000)", "alice", "message", "[recv] message request", null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void lineFourThreads(ToFile log) {
+        line(log);
+    }
+
+    @Benchmark
+    public void lineOverBurstLimit(Limited log) {
+        Log.log(Log.Level.INFO, "(127.0.0.1, 50000)", "alice", "message", "[recv] message request", null);
+    }
+
+    @Benchmark
+    public void lineBelowLevel(ToFile log) {
+        Log.debug("try to send invitation");
+    }
+}
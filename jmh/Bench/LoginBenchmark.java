@@ -0,0 +1,27 @@
+package Bench;
+
+import Server.Account;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The state changes of a login on one account, the password check itself is measured by LoginBench.
+ */
+@State(Scope.Benchmark)
+public class LoginBenchmark {
+    private final Account contended = new Account("contended", "pw");
+
+    @Benchmark
+    public void login() {
+        if (contended.login("pw") == 0) contended.logout();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void loginContending() {
+        login();
+    }
+}
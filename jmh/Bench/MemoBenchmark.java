@@ -0,0 +1,54 @@
+package Bench;
+
+import Server.MemoStore;
+import Server.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The offline memo log: appending, appending until synced, and the first page of a login.
+ */
+@State(Scope.Benchmark)
+public class MemoBenchmark {
+    private File dir;
+    private MemoStore memos;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("skynett-bench-memo").toFile();
+        memos = new MemoStore(dir, 64 << 20);
+        memos.start(3600);
+        for (int i = 0; i < 50; i++) memos.append(new Message("alice", "carol", "memo " + i));
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return memos.append(new Message("alice", "user" + (next++ & 1023), "see you tomorrow"));
+    }
+
+    @Benchmark
+    public void appendAndSync() throws IOException, InterruptedException {
+        memos.sync(memos.append(new Message("alice", "bob", "see you tomorrow")));
+    }
+
+    @Benchmark
+    public List<Message> replayPage() {
+        return memos.pending("carol", 50);
+    }
+}
@@ -0,0 +1,37 @@
+package Bench;
+
+import Server.Account;
+import Server.IdTable;
+import Server.PresenceIndex;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A server with ONLINE accounts logged in, the last of them (the viewer) blocked by the first BLOCKERS.
+ */
+@State(Scope.Benchmark)
+public class Online {
+    public static final int ONLINE = 100_000;
+    public static final int BLOCKERS = 1_000;
+
+    public Account[] accounts;
+    public IdTable<Account> sessions;
+    public PresenceIndex presence;
+    public Account viewer;
+
+    @Setup
+    public void setUp() {
+        accounts = new Account[ONLINE];
+        sessions = new IdTable<>();
+        presence = new PresenceIndex();
+        for (int i = 0; i < ONLINE; i++) {
+            accounts[i] = new Account("user" + i, "pw");
+            sessions.set(accounts[i].getId(), accounts[i]);
+            presence.join(accounts[i]);
+        }
+        viewer = accounts[ONLINE - 1];
+        for (int i = 0; i < BLOCKERS; i++) accounts[i].block(viewer);
+    }
+}
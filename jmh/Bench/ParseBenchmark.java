@@ -0,0 +1,45 @@
+package Bench;
+
+import Server.CommandLine;
+import Server.CommandRegistry;
+import Server.UtfFrameCodec;
+import Server.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the client thread does with every frame it reads, up to the handler taking the content.
+ */
+@State(Scope.Thread)
+public class ParseBenchmark {
+    private byte[] bytes;
+    private CommandRegistry<Object> registry;
+    private CommandLine line;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBuffer frame = UtfFrameCodec.encode("message bob are we still on for tonight?");
+        bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        registry = new CommandRegistry<>();
+        for (String name : new String[] { "login", "message", "logout", "whoelse", "whoelsesince", "broadcast", "block",
+                "unblock", "memoack", "help", "startprivate", "stats", "private", "stopprivate" }) {
+            registry.register(name, 0, name, (client, command) -> true);
+        }
+        line = new CommandLine();
+    }
+
+    @Benchmark
+    public void parseCommand(Blackhole sink) throws IOException {
+        String message = WireFormat.LEGACY.decode(bytes, 0, bytes.length).getText();
+        sink.consume(registry.find(line.reset(message)));
+        sink.consume(line.rest(2));
+    }
+}
@@ -0,0 +1,47 @@
+package Bench;
+
+import Server.Account;
+import Server.ChatRoom;
+import Server.ChatRooms;
+import Server.FanOut;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A message to a room with everybody else online too, until the last member has it.
+ */
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+    @Param({ "50", "1000" })
+    public int members;
+
+    private FanOut fanOut;
+    private ChatRoom room;
+    private int sender;
+    private int recipients;
+    private final AtomicLong delivered = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setUp(Online online) {
+        fanOut = new FanOut(Runtime.getRuntime().availableProcessors(), 256, Long.MAX_VALUE / 2);
+        ChatRooms rooms = new ChatRooms();
+        for (int i = 0; i < members; i++) rooms.join("room", online.accounts[i * (Online.ONLINE / members)].getId());
+        room = rooms.get("room");
+        sender = online.accounts[0].getId();
+        recipients = room.getMembers().andNot(Account.blocks().blockedBy(sender)).without(sender).cardinality();
+    }
+
+    @Benchmark
+    public void say() {
+        expected += recipients;
+        room.publish(fanOut, sender, id -> delivered.incrementAndGet());
+        while (delivered.get() < expected) Thread.yield();
+    }
+}
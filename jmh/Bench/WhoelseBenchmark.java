@@ -0,0 +1,35 @@
+package Bench;
+
+import Server.Account;
+import Server.CoarseClock;
+import Server.PresenceIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The whoelse lists with Online.ONLINE accounts logged in.
+ */
+@State(Scope.Benchmark)
+public class WhoelseBenchmark {
+    private final Account churn = new Account("churn", "pw");
+
+    @Benchmark
+    public Object whoelsePage(Online online) {
+        return online.presence.snapshot().list(0, online.viewer, 1, 100, "whoelse ");
+    }
+
+    @Benchmark
+    public Object whoelsesince(Online online) {
+        PresenceIndex.Snapshot snapshot = online.presence.snapshot();
+        return snapshot.list(snapshot.since(CoarseClock.millis() - 1000), online.viewer, 1, 100, "whoelsesince 1 ");
+    }
+
+    // a login or logout before every list, so the snapshot is rebuilt each time
+    @Benchmark
+    public Object whoelseAfterLogin(Online online) {
+        online.presence.join(churn);
+        return online.presence.snapshot().list(0, online.viewer, 1, 100, "whoelse ");
+    }
+}
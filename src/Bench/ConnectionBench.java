@@ -0,0 +1,221 @@
+/*
+ * Compares the platform and the virtual thread modes of the server on memory, thread count and login latency
+ * while holding many logged in connections.
+ *
+ * Usage (from src): java Bench.ConnectionBench [CONNECTIONS] [LOGINS_IN_FLIGHT]
+ */
+
+package Bench;
+
+import Server.UtfFrameCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ConnectionBench {
+
+    // one simulated user, driven through the login conversation by the selector loop
+    private static class BenchConnection {
+        final SocketChannel channel;
+        final String username;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        int step = 0;   // 0 - sent login, 1 - sent username, 2 - sent password, 3 - logged in
+        long startedAt;
+
+        BenchConnection(SocketChannel channel, String username) {
+            this.channel = channel;
+            this.username = username;
+        }
+
+        void send(String message) throws IOException {
+            ByteBuffer frame = UtfFrameCodec.encode(message);
+            while (frame.hasRemaining()) channel.write(frame);
+        }
+    }
+
+    private static class Result {
+        String mode;
+        int loggedIn;
+        int failed;
+        LatencyRecorder latency = new LatencyRecorder();
+        long idleRssKb;
+        long loadedRssKb;
+        long idleThreads;
+        long loadedThreads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        Result platform = run("platform", connections, inFlight);
+        Result virtual = run("virtual", connections, inFlight);
+
+        System.out.println();
+        System.out.println("===== " + connections + " connections, " + inFlight + " logins in flight =====");
+        for (Result r : List.of(platform, virtual)) {
+            System.out.println(r.mode + ":");
+            System.out.println("  logged in " + r.loggedIn + ", failed " + r.failed);
+            System.out.println("  login latency " + r.latency.summary());
+            System.out.println("  server RSS " + r.idleRssKb / 1024 + " MB idle -> " + r.loadedRssKb / 1024 + " MB loaded, "
+                    + (r.loadedRssKb - r.idleRssKb) / Math.max(1, r.loggedIn) + " KB per connection");
+            System.out.println("  server threads " + r.idleThreads + " idle -> " + r.loadedThreads + " loaded");
+        }
+    }
+
+    private static Result run(String mode, int connections, int inFlight) throws Exception {
+        Result result = new Result();
+        result.mode = mode;
+
+        // the server reads Server/credentials.txt relative to its working directory, so give it a scratch one
+        Path workDir = Files.createTempDirectory("skynett-bench");
+        Files.createDirectories(workDir.resolve("Server"));
+        try (PrintWriter writer = new PrintWriter(workDir.resolve("Server/credentials.txt").toFile())) {
+            for (int i = 0; i < connections; i++) writer.println("bench" + i + " pw");
+        }
+
+        int port = freePort();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process server = new ProcessBuilder(java, "-Dskynett.threads=" + mode, "-cp", new File(".").getAbsolutePath(),
+                "Server.TCPServer", String.valueOf(port), "60", "3600")
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            waitForPort(port);
+            Thread.sleep(500);
+            result.idleRssKb = procStatus(server.pid(), "VmRSS");
+            result.idleThreads = procStatus(server.pid(), "Threads");
+
+            driveLogins(port, connections, inFlight, result);
+
+            result.loadedRssKb = procStatus(server.pid(), "VmRSS");
+            result.loadedThreads = procStatus(server.pid(), "Threads");
+        } finally {
+            server.destroyForcibly().waitFor();
+            try (Stream<Path> files = Files.walk(workDir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        System.out.println("===== " + mode + " done: " + result.latency.summary() + " =====");
+        return result;
+    }
+
+    // log every connection in, with at most inFlight logins outstanding, then hold them open for a while
+    private static void driveLogins(int port, int connections, int inFlight, Result result) throws IOException {
+        Selector selector = Selector.open();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        int opened = 0;
+        int finished = 0;
+        long settleUntil = 0;
+        long lastProgress = System.currentTimeMillis();
+
+        while (true) {
+            while (opened < connections && opened - finished < inFlight) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                BenchConnection c = new BenchConnection(channel, "bench" + opened);
+                channel.register(selector, SelectionKey.OP_READ, c);
+                c.startedAt = System.nanoTime();
+                c.send("login");
+                opened++;
+            }
+            if (finished < connections && System.currentTimeMillis() - lastProgress > 10000) {
+                // no login finished for a while, e.g. the server corrupted a frame, count the rest as failed
+                System.out.println("===== logins stalled after " + finished + " of " + connections + " =====");
+                result.failed += connections - finished;
+                finished = connections;
+            }
+            if (finished == connections && settleUntil == 0) settleUntil = System.currentTimeMillis() + 2000;
+            if (settleUntil != 0 && System.currentTimeMillis() > settleUntil) break;
+
+            selector.select(200);
+            for (SelectionKey key : selector.selectedKeys()) {
+                BenchConnection c = (BenchConnection) key.attachment();
+                if (!key.isValid() || !key.isReadable()) continue;
+                if (c.in.remaining() == 0) c.in = ByteBuffer.allocate(c.in.capacity() * 2).put(c.in.flip());
+                if (c.channel.read(c.in) < 0) {
+                    key.cancel();
+                    if (c.step < 3) {
+                        result.failed++;
+                        finished++;
+                    }
+                    continue;
+                }
+                c.in.flip();
+                int length;
+                while ((length = UtfFrameCodec.peekLength(c.in)) >= 0 && c.in.remaining() >= UtfFrameCodec.HEADER_SIZE + length) {
+                    int start = c.in.position() + UtfFrameCodec.HEADER_SIZE;
+                    String frame = UtfFrameCodec.decode(c.in.array(), start, length);
+                    c.in.position(start + length);
+                    if (c.step == 3) continue;   // logged in, broadcasts are just drained
+                    if (frame.startsWith("1")) {
+                        result.failed++;
+                        finished++;
+                        lastProgress = System.currentTimeMillis();
+                        c.step = 3;
+                    } else if (c.step == 0 && frame.startsWith("0Username")) {
+                        c.step = 1;
+                        c.send(c.username);
+                    } else if (c.step == 1 && frame.startsWith("0Password")) {
+                        c.step = 2;
+                        c.send("pw");
+                    } else if (c.step == 2 && frame.startsWith("0Login successful")) {
+                        c.step = 3;
+                        result.latency.record(System.nanoTime() - c.startedAt);
+                        result.loggedIn++;
+                        finished++;
+                        lastProgress = System.currentTimeMillis();
+                    }
+                }
+                c.in.compact();
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                // only to see that the server is accepting
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    // a numeric field of /proc/<pid>/status, 0 where procfs is not available
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field + ":")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        } catch (IOException e) {
+            // not linux
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,44 @@
+package Bench;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples in nanoseconds and reports percentiles over them.
+ */
+public class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    public void record(long nanos) {
+        if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    // add every sample of this recorder to the other one
+    public void copyTo(LatencyRecorder other) {
+        for (int i = 0; i < count; i++) other.record(samples[i]);
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    // the value below which the given fraction of the samples fall, in nanoseconds
+    public long percentile(double fraction) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    // p50/p90/p99/max in milliseconds
+    public String summary() {
+        return String.format("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                percentile(0.50) / 1e6, percentile(0.90) / 1e6, percentile(0.99) / 1e6, percentile(1.0) / 1e6);
+    }
+}
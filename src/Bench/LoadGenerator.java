@@ -0,0 +1,327 @@
+/*
+ * Runs thousands of simulated users against a local server to find out how many it can take. Users are added in
+ * steps, each of them doing a scripted mix of messages, broadcasts, whoelse, private chats and logging out and in
+ * again. Every step reports the end-to-end delivery latencies and the error rate, the run stops at the first step
+ * that misses the latency objective or fails more than 1% of the actions.
+ *
+ * Usage (from src): java Bench.LoadGenerator [USERS] [STEP] [STEP_SECONDS]
+ *   -Dskynett.load.port=N          use the server already listening there, otherwise one is started in a scratch directory
+ *   -Dskynett.load.server="opts"   JVM options of the started server, "-Dskynett.io=nio" by default
+ *   -Dskynett.load.rate=N          actions per user per second, 1 by default
+ *   -Dskynett.load.mix=...         weights of the actions, "message:70,broadcast:2,whoelse:15,startprivate:3,relogin:10" by default,
+ *                                  "reconnect" drops the connection and resumes the session on a new one
+ *   -Dskynett.load.slo=N           p99 message delivery objective in milliseconds, 200 by default
+ */
+
+package Bench;
+
+import Client.ClientListener;
+import Client.ClientLoop;
+import Client.SkynettClient;
+import Server.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class LoadGenerator {
+    private static final String MARK = "lg ";
+
+    // the actions of the script, with their weights
+    private static final Map<String, Integer> mix = new LinkedHashMap<>();
+    private static int totalWeight;
+    private static double rate;
+
+    private static final LatencyHistogram messageLatency = new LatencyHistogram();
+    private static final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private static final LatencyHistogram privateLatency = new LatencyHistogram();
+    private static final LatencyHistogram whoelseLatency = new LatencyHistogram();
+    private static final LatencyHistogram loginLatency = new LatencyHistogram();
+    private static final LatencyHistogram resumeLatency = new LatencyHistogram();
+    private static final LongAdder actions = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    // logins turned away, e.g. by a busy server, the users try again a second later
+    private static final LongAdder loginErrors = new LongAdder();
+
+    private static SimUser[] users;
+    private static int port;
+
+    // one simulated user, everything it does runs on the loop thread of its client
+    private static class SimUser implements ClientListener {
+        final int index;
+        final String name;
+        final ClientLoop loop;
+        SkynettClient client;
+        volatile boolean online = false;
+        boolean leaving = false;
+        // the session to resume on the next connection, null to log in
+        String token;
+        long whoelseSentAt = 0;
+
+        SimUser(int index, ClientLoop loop) {
+            this.index = index;
+            this.name = "load" + index;
+            this.loop = loop;
+        }
+
+        void start() {
+            long started = System.nanoTime();
+            leaving = false;
+            String resuming = token;
+            token = null;
+            client = new SkynettClient(loop, "127.0.0.1", port, this);
+            client.connect(true)
+                    .thenCompose(c -> resuming != null ? c.resume(resuming) : c.login(name, "pw"))
+                    .whenComplete((reply, error) -> loop.execute(() -> {
+                        if (error != null || !reply.startsWith("Login successful") && !reply.startsWith("Account created")
+                                && !reply.startsWith("Session resumed")) {
+                            loginErrors.increment();
+                            // try again in a while
+                            loop.schedule(1000, this::start);
+                            return;
+                        }
+                        (resuming != null ? resumeLatency : loginLatency).record(System.nanoTime() - started);
+                        online = true;
+                        scheduleNext();
+                    }));
+        }
+
+        void scheduleNext() {
+            // exponential gaps between the actions, rate of them per second on average
+            long delay = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * 1000 / rate);
+            loop.schedule(delay, this::act);
+        }
+
+        void act() {
+            if (!online) return;
+            actions.increment();
+            SimUser other = users[ThreadLocalRandom.current().nextInt(users.length)];
+            int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+            String action = null;
+            for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    action = entry.getKey();
+                    break;
+                }
+            }
+            if (other == this || other == null || !other.online) action = "whoelse";
+            switch (action) {
+                case "message":
+                    client.send("message " + other.name + " " + MARK + "m " + System.nanoTime());
+                    break;
+                case "broadcast":
+                    client.send("broadcast " + MARK + "b " + System.nanoTime());
+                    break;
+                case "startprivate":
+                    client.send("startprivate " + other.name);
+                    break;
+                case "relogin":
+                    online = false;
+                    leaving = true;
+                    client.send("logout");
+                    return;
+                case "reconnect":
+                    // gone without logging out, as if the network had dropped
+                    online = false;
+                    leaving = true;
+                    token = client.getSessionToken();
+                    client.close();
+                    return;
+                default:
+                    whoelseSentAt = System.nanoTime();
+                    client.send("whoelse");
+                    break;
+            }
+            scheduleNext();
+        }
+
+        @Override
+        public void onText(SkynettClient client, String text) {
+            int mark = text.indexOf(": " + MARK);
+            if (mark >= 0) {
+                int at = mark + 2 + MARK.length();
+                long latency = System.nanoTime() - Long.parseLong(text.substring(at + 2, text.length() - 1).trim());
+                char kind = text.charAt(at);
+                if (kind == 'm') messageLatency.record(latency);
+                else if (kind == 'b') broadcastLatency.record(latency);
+            } else if (whoelseSentAt != 0 && !text.startsWith("System:")) {
+                whoelseLatency.record(System.nanoTime() - whoelseSentAt);
+                whoelseSentAt = 0;
+            } else if (text.startsWith("Command") || text.startsWith("Error") || text.startsWith("Server is busy")) {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public void onQuestion(SkynettClient client, String text) {
+            // always take the private chat
+            client.send("y");
+        }
+
+        @Override
+        public void onPrivateStarting(SkynettClient client, String peer, boolean inviter) {
+            if (!inviter) return;
+            // the chat is known to the client once this callback is over
+            loop.execute(() -> {
+                client.sendPrivate(peer, MARK + "p " + System.nanoTime());
+                loop.schedule(1000, () -> client.stopPrivate(peer));
+            });
+        }
+
+        @Override
+        public void onPrivateMessage(SkynettClient client, String peer, String text) {
+            int mark = text.indexOf(": " + MARK + "p ");
+            if (mark >= 0) privateLatency.record(System.nanoTime() - Long.parseLong(text.substring(mark + 2 + MARK.length() + 2).trim()));
+        }
+
+        @Override
+        public void onClosed(SkynettClient client) {
+            // the end of a failed login has been counted already
+            boolean wasOnline = online;
+            online = false;
+            if (leaving) loop.schedule(100, this::start);
+            else if (wasOnline) errors.increment();
+        }
+
+        @Override
+        public void onError(SkynettClient client, Throwable error) {
+            errors.increment();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxUsers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int step = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int stepSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        rate = Double.parseDouble(System.getProperty("skynett.load.rate", "1"));
+        long slo = Long.getLong("skynett.load.slo", 200);
+        for (String part : System.getProperty("skynett.load.mix", "message:70,broadcast:2,whoelse:15,startprivate:3,relogin:10").split(",")) {
+            String[] kv = part.split(":");
+            mix.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            totalWeight += Integer.parseInt(kv[1].trim());
+        }
+
+        Process server = null;
+        Path workDir = null;
+        if (Integer.getInteger("skynett.load.port") != null) {
+            port = Integer.getInteger("skynett.load.port");
+        } else {
+            workDir = Files.createTempDirectory("skynett-load");
+            Files.createDirectories(workDir.resolve("Server"));
+            try (PrintWriter writer = new PrintWriter(workDir.resolve("Server/credentials.txt").toFile())) {
+                for (int i = 0; i < maxUsers; i++) writer.println("load" + i + " pw");
+            }
+            port = freePort();
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            String options = System.getProperty("skynett.load.server", "-Dskynett.io=nio").trim();
+            if (!options.isEmpty()) command.addAll(Arrays.asList(options.split("\\s+")));
+            command.addAll(Arrays.asList("-cp", new File(".").getAbsolutePath(), "Server.TCPServer", String.valueOf(port), "60", "3600"));
+            server = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            waitForPort(port);
+        }
+
+        try {
+            ClientLoop[] loops = new ClientLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new ClientLoop("load-loop-" + i);
+                loops[i].setErrorHandler(error -> errors.increment());
+                loops[i].start();
+            }
+            users = new SimUser[maxUsers];
+            System.out.println("===== " + maxUsers + " users in steps of " + step + " every " + stepSeconds + " s, "
+                    + rate + " actions per user per second, mix " + mix + " =====");
+
+            int running = 0;
+            int capacity = 0;
+            while (running < maxUsers) {
+                int target = Math.min(maxUsers, running + step);
+                // the new users log in spread over a moment, then the step starts
+                long spread = Math.min(2000, stepSeconds * 200L);
+                for (int i = 0; running < target; running++, i++) {
+                    SimUser user = new SimUser(running, loops[running % loops.length]);
+                    users[running] = user;
+                    user.loop.schedule(spread * i / step, user::start);
+                }
+                Thread.sleep(spread + 500);
+                resetStats();
+                long start = System.nanoTime();
+                Thread.sleep(stepSeconds * 1000L);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                long done = actions.sum();
+                long failed = errors.sum();
+                double errorRate = done == 0 ? 0 : (double) failed / done;
+                int online = 0;
+                for (int i = 0; i < running; i++) if (users[i].online) online++;
+                System.out.printf("%6d users (%d online) %8.0f actions/s  errors %.2f%%  logins turned away %d%n", running, online,
+                        done / seconds, errorRate * 100, loginErrors.sum());
+                System.out.println("       message   " + messageLatency.summary());
+                System.out.println("       broadcast " + broadcastLatency.summary());
+                System.out.println("       private   " + privateLatency.summary());
+                System.out.println("       whoelse   " + whoelseLatency.summary());
+                System.out.println("       login     " + loginLatency.summary());
+                if (resumeLatency.count() > 0) System.out.println("       resume    " + resumeLatency.summary());
+
+                boolean missed = messageLatency.percentile(0.99) > slo * 1_000_000 || errorRate > 0.01;
+                if (missed) {
+                    System.out.println("===== objective missed at " + running + " users (p99 message <= " + slo + " ms, errors <= 1%) =====");
+                    break;
+                }
+                capacity = running;
+            }
+            System.out.println("===== capacity: " + capacity + " users at " + rate + " actions per second each =====");
+        } finally {
+            if (server != null) {
+                server.destroyForcibly().waitFor();
+                try (Stream<Path> files = Files.walk(workDir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void resetStats() {
+        for (LatencyHistogram histogram : new LatencyHistogram[] { messageLatency, broadcastLatency, privateLatency, whoelseLatency, loginLatency, resumeLatency }) {
+            histogram.reset();
+        }
+        actions.reset();
+        errors.reset();
+        loginErrors.reset();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                // only to see that the server is accepting
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Measures how many password checks per second the server can do per core with the current hash cost, alone and on
+ * the bounded verifier pool, and how long an ordinary thread waits for the cpu while the pool is saturated.
+ *
+ * Usage (from src): java Bench.LoginBench [ITERATIONS] [VERIFIER_THREADS] [LOGINS]
+ */
+
+package Bench;
+
+import Server.PasswordHasher;
+import Server.VerifierPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+public class LoginBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 120_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, cores / 2);
+        int logins = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        PasswordHasher.configure(iterations);
+        String stored = PasswordHasher.hash("secret");
+        // warm up the key derivation
+        for (int i = 0; i < 5; i++) PasswordHasher.verify("secret", stored);
+
+        // one thread checking passwords back to back
+        LatencyRecorder single = new LatencyRecorder();
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            long t0 = System.nanoTime();
+            if (!PasswordHasher.verify("secret", stored)) throw new IllegalStateException("verification failed");
+            single.record(System.nanoTime() - t0);
+        }
+        double singleRate = logins / ((System.nanoTime() - start) / 1e9);
+
+        // the verifier pool with room for every login, and a thread standing in for the chat traffic meanwhile
+        VerifierPool pool = new VerifierPool(threads, logins);
+        LatencyRecorder chat = new LatencyRecorder();
+        Thread chatThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long t0 = System.nanoTime();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // how late the thread got the cpu back
+                chat.record(Math.max(0, System.nanoTime() - t0 - 1_000_000));
+            }
+        });
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        start = System.nanoTime();
+        chatThread.start();
+        for (int i = 0; i < logins; i++) results.add(pool.submit(() -> PasswordHasher.verify("secret", stored)));
+        for (CompletableFuture<Boolean> result : results) result.join();
+        double poolRate = logins / ((System.nanoTime() - start) / 1e9);
+        chatThread.interrupt();
+        chatThread.join();
+
+        // a burst ten times the size of a small queue, the rest is turned away at once
+        VerifierPool small = new VerifierPool(threads, 16);
+        int accepted = 0;
+        List<CompletableFuture<Boolean>> burst = new ArrayList<>();
+        for (int i = 0; i < 160; i++) {
+            try {
+                burst.add(small.submit(() -> PasswordHasher.verify("secret", stored)));
+                accepted++;
+            } catch (RejectedExecutionException e) {
+                // shed
+            }
+        }
+        for (CompletableFuture<Boolean> result : burst) result.join();
+
+        System.out.println();
+        System.out.println("===== " + iterations + " iterations, " + logins + " logins, " + cores + " cores =====");
+        System.out.printf("single thread: %.1f logins/s, latency %s%n", singleRate, single.summary());
+        System.out.printf("pool of %d: %.1f logins/s, %.1f logins/s per core in use%n", threads, poolRate, poolRate / Math.min(threads, cores));
+        System.out.println("chat thread lateness while the pool is busy " + chat.summary());
+        System.out.println("burst of 160 on a queue of 16: " + accepted + " accepted, " + small.getRejected() + " turned away");
+    }
+}
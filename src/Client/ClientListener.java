@@ -0,0 +1,43 @@
+package Client;
+
+/**
+ * What a SkynettClient hears from the server and from the users it chats with privately.
+ * Every callback runs on the loop thread of the client and must not block, the defaults ignore the event.
+ */
+public interface ClientListener {
+
+    // a plain message from the server or another user, status code already stripped
+    default void onText(SkynettClient client, String text) {
+    }
+
+    // the server ends the session with this message
+    default void onExit(SkynettClient client, String text) {
+    }
+
+    // the server asks a question, the next command sent is the answer
+    default void onQuestion(SkynettClient client, String text) {
+    }
+
+    // a page of offline messages is through, the next one is asked for by the client itself
+    default void onMemoPage(SkynettClient client, int left) {
+    }
+
+    // a private chat is being set up, inviter tells whether this user asked for it
+    default void onPrivateStarting(SkynettClient client, String peer, boolean inviter) {
+    }
+
+    default void onPrivateMessage(SkynettClient client, String peer, String text) {
+    }
+
+    // byPeer tells whether the other user closed the chat, rather than the connection just ending
+    default void onPrivateClosed(SkynettClient client, String peer, boolean byPeer) {
+    }
+
+    // the connection to the server is gone
+    default void onClosed(SkynettClient client) {
+    }
+
+    // something failed that the client carries on after, e.g. a message that could not be sent
+    default void onError(SkynettClient client, Throwable error) {
+    }
+}
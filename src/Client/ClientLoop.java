@@ -0,0 +1,122 @@
+package Client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A selector thread driving any number of client connections, so that one JVM can be thousands of users.
+ * Everything a connection does with its channel happens on this thread, other threads hand work over with execute.
+ */
+public class ClientLoop extends Thread {
+
+    // whatever is registered with the selector of the loop, called on the loop thread when its key is ready
+    interface Selectable {
+        void ready(SelectionKey key);
+
+        // ready threw, the loop goes on
+        void failed(RuntimeException error);
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Runnable task;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // loop thread only
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    // told of what fails on the loop outside of any connection, nothing by default as the loop never prints
+    private volatile Consumer<Throwable> errorHandler = error -> { };
+
+    public ClientLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * where a failing task or selector of the loop is reported, the failures of a connection go to its listener
+     */
+    public void setErrorHandler(Consumer<Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * run the task on the loop thread, after the tasks handed over before it
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != this) selector.wakeup();
+    }
+
+    /**
+     * run the task on the loop thread once the delay has passed
+     */
+    public void schedule(long delayMillis, Runnable task) {
+        long deadline = System.currentTimeMillis() + delayMillis;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    // loop thread only
+    Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (!tasks.isEmpty()) selector.selectNow();
+                else if (timers.isEmpty()) selector.select();
+                else selector.select(Math.max(1, timers.peek().deadline - System.currentTimeMillis()));
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) run(task);
+                long now = System.currentTimeMillis();
+                while (!timers.isEmpty() && timers.peek().deadline <= now) run(timers.poll().task);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) ready((Selectable) key.attachment(), key);
+                }
+            } catch (IOException e) {
+                errorHandler.accept(e);
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    private static void ready(Selectable selectable, SelectionKey key) {
+        try {
+            selectable.ready(key);
+        } catch (RuntimeException e) {
+            selectable.failed(e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package Client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Protocol.Frame;
+import Protocol.FrameInflater;
+
+/**
+ * A non-blocking socket driven by a ClientLoop that sends and receives whole frames, either binary frames or writeUTF
+ * strings of the legacy text protocol. Frames may be sent from any thread, they are received on the loop thread.
+ */
+public abstract class FramedConnection implements ClientLoop.Selectable {
+    private static final int INITIAL_BUFFER = 1024;
+
+    protected final ClientLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer writing;
+    private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean binary;
+    // inflates the frames the other end compresses, loop thread only
+    private FrameInflater inflater;
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+
+    protected FramedConnection(ClientLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * a frame received, called on the loop thread
+     */
+    protected abstract void onFrame(Frame frame);
+
+    /**
+     * the connection is closed, by either side, called once on the loop thread
+     */
+    protected abstract void onClosed();
+
+    /**
+     * something failed that the connection carries on after, called on the loop thread
+     */
+    protected abstract void onError(Throwable error);
+
+    /**
+     * the connection is established, called on the loop thread
+     */
+    protected void onConnected() {
+    }
+
+    public void sendFrame(Frame frame) {
+        try {
+            sendBytes(binary ? ByteBuffer.wrap(frame.encode()) : encodeLegacy(frame.toLegacy()));
+        } catch (IOException e) {
+            loop.execute(() -> onError(e));
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * close the connection once everything sent so far has been written
+     */
+    public void close() {
+        closing = true;
+        scheduleFlush();
+    }
+
+    // queue bytes as they are
+    void sendBytes(ByteBuffer bytes) {
+        if (closed) return;
+        out.add(bytes);
+        scheduleFlush();
+    }
+
+    // loop thread only, take over a channel that is connected or connecting, receiving frames in the given protocol
+    void attach(SocketChannel channel, boolean binary) throws IOException {
+        this.channel = channel;
+        this.binary = binary;
+        channel.configureBlocking(false);
+        boolean connected = channel.isConnected();
+        key = channel.register(loop.selector(), connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        if (connected) connected();
+    }
+
+    // loop thread only, drop the channel without telling anyone, to start over on another one
+    void detach() {
+        if (key != null) key.cancel();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        channel = null;
+        key = null;
+        in.clear();
+        writing = null;
+        out.clear();
+        if (inflater != null) inflater.end();
+        inflater = null;
+    }
+
+    // loop thread only
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    // loop thread only, the other end may compress its frames from now on
+    void inflateFrames() {
+        if (inflater == null) inflater = new FrameInflater();
+    }
+
+    @Override
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect()) return;
+                connected();
+            }
+            if (key.isValid() && key.isReadable()) read();
+            if (key.isValid() && key.isWritable()) flush();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    @Override
+    public void failed(RuntimeException error) {
+        onError(error);
+    }
+
+    private void connected() {
+        key.interestOps(SelectionKey.OP_READ);
+        onConnected();
+        flush();
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            closeNow();
+            return;
+        }
+        in.flip();
+        while (!closed && channel != null) {
+            int size = binary ? Frame.peekSize(in) : legacySize(in);
+            if (size < 0 || in.remaining() < size) break;
+            int start = in.position();
+            Frame frame;
+            if (binary) {
+                frame = Frame.decode(in.array(), start + Frame.LENGTH_SIZE, size - Frame.LENGTH_SIZE, inflater);
+            } else {
+                frame = Frame.fromLegacy(new DataInputStream(new ByteArrayInputStream(in.array(), start, size)).readUTF());
+            }
+            in.position(start + size);
+            onFrame(frame);
+        }
+        if (channel == null) return;
+        // keep the start of an unfinished frame, in a larger buffer if it cannot hold the whole frame
+        int size = binary ? Frame.peekSize(in) : legacySize(in);
+        in.compact();
+        if (size > in.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(size);
+            in.flip();
+            grown.put(in);
+            in = grown;
+        }
+    }
+
+    private static int legacySize(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) return -1;
+        return 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+    }
+
+    static ByteBuffer encodeLegacy(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        new DataOutputStream(bytes).writeUTF(message);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+    }
+
+    // loop thread only, write as much as the socket accepts
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null || !channel.isConnected()) return;
+        try {
+            while (true) {
+                if (writing == null) writing = out.poll();
+                if (writing == null) break;
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closing) closeNow();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    // loop thread only
+    void closeNow() {
+        if (closed) return;
+        closed = true;
+        detach();
+        onClosed();
+    }
+}
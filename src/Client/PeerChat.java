@@ -0,0 +1,71 @@
+package Client;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+
+/**
+ * A private chat with another user over a direct connection, always in the legacy text protocol.
+ * The side that connects names both users in a PRIVATE_HELLO first, the side that accepted the chat only takes
+ * connections from the users it is waiting for, all of them on the one port of its SkynettClient.
+ */
+public class PeerChat extends FramedConnection {
+    private final SkynettClient owner;
+    // null until an accepted connection has said who it is
+    private volatile String peer;
+    private boolean closedByPeer = false;
+
+    PeerChat(ClientLoop loop, SkynettClient owner, String peer) {
+        super(loop);
+        this.owner = owner;
+        this.peer = peer;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    // tell the other user who is connecting, before anything else
+    void hello() {
+        sendFrame(new Frame(Opcode.PRIVATE_HELLO, new String[] { owner.getUserName(), peer }, ""));
+    }
+
+    public void say(String content) {
+        sendFrame(new Frame(Opcode.TEXT, "(Private)" + owner.getUserName() + ": " + content + "\n"));
+    }
+
+    /**
+     * tell the other user the chat is over and close it
+     */
+    public void stop() {
+        sendFrame(new Frame(Opcode.PRIVATE_CLOSED, new String[] { owner.getUserName() }, ""));
+        close();
+    }
+
+    @Override
+    protected void onFrame(Frame frame) {
+        if (peer == null) {
+            // anyone can connect to the port, only the users this one has accepted a chat with get in
+            if (frame.getOpcode() != Opcode.PRIVATE_HELLO || frame.getArgs().length < 2
+                    || !owner.identified(this, frame.getArg(0), frame.getArg(1))) {
+                closeNow();
+                return;
+            }
+            peer = frame.getArg(0);
+        } else if (frame.getOpcode() == Opcode.PRIVATE_CLOSED) {
+            closedByPeer = true;
+            closeNow();
+        } else {
+            owner.getListener().onPrivateMessage(owner, peer, frame.getText());
+        }
+    }
+
+    @Override
+    protected void onClosed() {
+        if (peer != null) owner.privateClosed(this, closedByPeer);
+    }
+
+    @Override
+    protected void onError(Throwable error) {
+        owner.getListener().onError(owner, error);
+    }
+}
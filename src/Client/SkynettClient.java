@@ -0,0 +1,356 @@
+package Client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+
+/**
+ * One user connected to a Skynett server, without any console: commands are sent as they are, whatever comes back
+ * goes to the listener. Nothing blocks, the client runs on a ClientLoop shared with any number of other clients.
+ * It asks for the binary protocol first and falls back to the text protocol when the server does not answer in time.
+ * The private chats it accepts all come in on one listening port, opened with the first of them and registered with
+ * the same loop, so any number of them costs a socket each and no threads.
+ */
+public class SkynettClient extends FramedConnection {
+    private static final int HELLO_TIMEOUT = 3000;
+    // how long an accepted private chat waits for the other user to connect, and a connection to say who it is
+    private static final int PEER_TIMEOUT = 30000;
+
+    private final InetSocketAddress server;
+    private final ClientListener listener;
+    private final CompletableFuture<SkynettClient> connected = new CompletableFuture<>();
+    private final Map<String, PeerChat> privateChats = new ConcurrentHashMap<>();
+    private volatile String userName;
+    // the token to resume the session with on another connection, null until logged in
+    private volatile String sessionToken;
+    // whether to ask the server to compress its frames
+    private volatile boolean deflate = true;
+
+    // loop thread only
+    private boolean negotiating = false;
+    private CompletableFuture<String> login;
+    private String loginName;
+    private String loginPassword;
+    private ServerSocketChannel acceptor;
+    // the users this one has accepted a private chat with and who have not connected yet, each with its own wait
+    private final Map<String, Object> awaitedPeers = new HashMap<>();
+
+    public SkynettClient(ClientLoop loop, String host, int port, ClientListener listener) {
+        super(loop);
+        server = new InetSocketAddress(host, port);
+        this.listener = listener;
+    }
+
+    /**
+     * connect to the server, in the binary protocol if asked for and the server knows it
+     */
+    public CompletableFuture<SkynettClient> connect(boolean binary) {
+        loop.execute(() -> open(binary));
+        return connected;
+    }
+
+    /**
+     * whether to ask the server to compress its frames, on unless turned off before connecting
+     */
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    /**
+     * send a command, or the answer to a question
+     */
+    public void send(String command) {
+        sendFrame(new Frame(Opcode.COMMAND, command));
+    }
+
+    /**
+     * log in with a single command, registering the user if it does not exist yet
+     * @return the answer of the server that ends the login, success or not
+     */
+    public CompletableFuture<String> login(String username, String password) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        loop.execute(() -> {
+            login = result;
+            loginName = username;
+            loginPassword = password;
+            send("login " + username + " " + password);
+        });
+        return result;
+    }
+
+    /**
+     * take up the session of another client that has lost its connection, with the token it was given
+     * @return the answer of the server, "Session resumed" on success, otherwise the session has to log in again
+     */
+    public CompletableFuture<String> resume(String token) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        loop.execute(() -> {
+            login = result;
+            send("resume " + token);
+        });
+        return result;
+    }
+
+    /**
+     * send a message over the private chat with the given user, false if there is no such chat
+     */
+    public boolean sendPrivate(String peer, String content) {
+        // the server only notes the activity, the message itself goes straight to the other user
+        send("private");
+        PeerChat chat = privateChats.get(peer);
+        if (chat == null) return false;
+        chat.say(content);
+        return true;
+    }
+
+    /**
+     * end the private chat with the given user, false if there is no such chat
+     */
+    public boolean stopPrivate(String peer) {
+        send("stopprivate");
+        PeerChat chat = privateChats.remove(peer);
+        if (chat == null) return false;
+        chat.stop();
+        return true;
+    }
+
+    public boolean hasPrivateChat(String peer) {
+        return privateChats.containsKey(peer);
+    }
+
+    // the name the server knows this user by, null until logged in
+    public String getUserName() {
+        return userName;
+    }
+
+    // the token of the session, null if the server has not given one
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public ClientListener getListener() {
+        return listener;
+    }
+
+    private void open(boolean binary) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(server);
+            attach(channel, binary);
+        } catch (IOException e) {
+            connected.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    protected void onConnected() {
+        if (!isBinary()) {
+            connected.complete(this);
+            return;
+        }
+        // servers that do not know the binary protocol never answer the hello
+        negotiating = true;
+        ByteBuffer hello = ByteBuffer.allocate(Frame.HELLO_MAGIC.length + 1);
+        hello.put(Frame.HELLO_MAGIC).put(Frame.VERSION).flip();
+        sendBytes(hello);
+        loop.schedule(HELLO_TIMEOUT, () -> {
+            if (!negotiating) return;
+            negotiating = false;
+            detach();
+            open(false);
+        });
+    }
+
+    @Override
+    protected void onFrame(Frame frame) {
+        if (negotiating) {
+            negotiating = false;
+            if (frame.getOpcode() == Opcode.HELLO) {
+                if (deflate) {
+                    // whatever the server answers, it only compresses once it has this
+                    inflateFrames();
+                    sendFrame(new Frame(Opcode.HELLO, new String[] { Frame.DEFLATE }, ""));
+                }
+                connected.complete(this);
+            } else {
+                detach();
+                open(false);
+            }
+            return;
+        }
+        switch (frame.getOpcode()) {
+            case TEXT:
+                if (login == null || !continueLogin(frame.getText())) listener.onText(this, frame.getText());
+                break;
+            case EXIT:
+                if (login != null) finishLogin(frame.getText());
+                listener.onExit(this, frame.getText());
+                break;
+            case QUESTION:
+                listener.onQuestion(this, frame.getText());
+                break;
+            case SESSION:
+                // comes before the answer that ends the login
+                sessionToken = frame.getArg(0);
+                userName = frame.getArg(1);
+                break;
+            case MEMO_PAGE:
+                // a page of offline messages is through, ask for the next one
+                listener.onMemoPage(this, Integer.parseInt(frame.getArg(1)));
+                send("memoack");
+                break;
+            case PRIVATE_ACCEPTED:
+                // the other user has accepted the private chat this user asked for and listens at host:port
+                userName = frame.getArg(0);
+                connectPrivate(frame.getArg(1), frame.getArg(2), frame.getArg(3));
+                break;
+            case PRIVATE_LISTEN:
+                // this user has accepted a private chat, listen for the other user and tell the server where
+                userName = frame.getArg(0);
+                listenPrivate(frame.getArg(1));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // the next step of the login conversation, false if the message is not part of it
+    private boolean continueLogin(String text) {
+        if (text.startsWith("Username: ")) send(loginName);
+        else if (text.startsWith("Password: ") || text.startsWith("Please enter a new password")) send(loginPassword);
+        else if (text.startsWith("Username does not exist")) send("y");
+        else if (text.startsWith("Please wait")) return true;
+        else {
+            if (text.startsWith("Login successful") || text.startsWith("Account created")) userName = loginName;
+            finishLogin(text);
+            return false;
+        }
+        return true;
+    }
+
+    private void finishLogin(String text) {
+        CompletableFuture<String> result = login;
+        login = null;
+        loginPassword = null;
+        result.complete(text);
+    }
+
+    private void connectPrivate(String peer, String host, String port) {
+        listener.onPrivateStarting(this, peer, true);
+        PeerChat chat = new PeerChat(loop, this, peer);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(host, Integer.parseInt(port)));
+            chat.attach(channel, false);
+            chat.hello();
+            privateChats.put(peer, chat);
+        } catch (IOException | IllegalArgumentException e) {
+            // whatever the other user answered was not a port it listens on
+            listener.onPrivateClosed(this, peer, false);
+        }
+    }
+
+    private void listenPrivate(String peer) {
+        listener.onPrivateStarting(this, peer, false);
+        try {
+            if (acceptor == null) listen();
+        } catch (IOException e) {
+            send("0");
+            listener.onPrivateClosed(this, peer, false);
+            return;
+        }
+        Object wait = new Object();
+        awaitedPeers.put(peer, wait);
+        loop.schedule(PEER_TIMEOUT, () -> {
+            if (awaitedPeers.remove(peer, wait)) listener.onPrivateClosed(this, peer, false);
+        });
+        send(String.valueOf(acceptor.socket().getLocalPort()));
+    }
+
+    // open the port the private chats this user accepts come in on
+    private void listen() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            channel.register(loop.selector(), SelectionKey.OP_ACCEPT, new ClientLoop.Selectable() {
+                @Override
+                public void ready(SelectionKey key) {
+                    accept();
+                }
+
+                @Override
+                public void failed(RuntimeException error) {
+                    onError(error);
+                }
+            });
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        acceptor = channel;
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                // who it is comes with its first frame, a connection that does not say in time is dropped
+                PeerChat chat = new PeerChat(loop, this, null);
+                chat.attach(channel, false);
+                loop.schedule(PEER_TIMEOUT, () -> {
+                    if (chat.getPeer() == null) chat.closeNow();
+                });
+            }
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    // loop thread only, whether an accepted connection is the user it says it is waited for, the chat is on if so
+    boolean identified(PeerChat chat, String peer, String target) {
+        if (!target.equals(userName) || awaitedPeers.remove(peer) == null) return false;
+        privateChats.put(peer, chat);
+        return true;
+    }
+
+    // a private chat has ended, from either side
+    void privateClosed(PeerChat chat, boolean byPeer) {
+        privateChats.remove(chat.getPeer(), chat);
+        listener.onPrivateClosed(this, chat.getPeer(), byPeer);
+    }
+
+    @Override
+    protected void onClosed() {
+        connected.completeExceptionally(new IOException("connection closed"));
+        if (login != null) finishLogin("Connection closed");
+        for (PeerChat chat : privateChats.values()) chat.close();
+        awaitedPeers.clear();
+        if (acceptor != null) {
+            try {
+                acceptor.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            acceptor = null;
+        }
+        listener.onClosed(this);
+    }
+
+    @Override
+    protected void onError(Throwable error) {
+        listener.onError(this, error);
+    }
+}
@@ -4,127 +4,71 @@
  */
 
 package Client;
-import java.net.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
 import java.io.*;
 
-
+/**
+ * The console client: what the user types goes to the server, what comes back is printed.
+ * The protocol itself is handled by SkynettClient.
+ */
 public class TCPClient {
-    // server host and port number, which would be acquired from command line parameter
-    private static String serverHost;
-    private static Integer serverPort;
-    private static DataInputStream dataInputStream;
-    private static DataOutputStream dataOutputStream;
-    private static MessageListener listener;
-    private static Boolean serverDown = false;
-    private static Boolean answerMode = false;
-    private static String userName;
-    private static Map<String, DataOutputStream> privateChatOutputs;
-    private static Map<String, Socket> privateChatSockets;
-
-    /**
-     * Seperate thread for listening message sent by other users
-     */
-    private static class MessageListener extends Thread {
-        //private Socket messageSocket;
-        //private int identityPort;
-        private DataInputStream dataInputStream;
-        private Boolean serverListener;
-        private String userListento;
-
-        MessageListener(DataInputStream in, Boolean server, String name) {
-            serverListener = server;
-            dataInputStream = in;
-            if (!serverListener) userListento = name;
+    private static volatile Boolean answerMode = false;
+
+    // prints whatever the server and the other users send
+    private static class ConsoleListener implements ClientListener {
+
+        @Override
+        public void onText(SkynettClient client, String text) {
+            // plain message, no special operation
+            System.out.print(text);
+        }
+
+        @Override
+        public void onExit(SkynettClient client, String text) {
+            // exit the client
+            System.out.print(text);
+            System.exit(0);
         }
-        
+
         @Override
-        public void run() {
-            super.run();
-            while (true) {
-                try {
-                    String message = (String) dataInputStream.readUTF();
-                    Character statusCode = message.charAt(0);
-                    
-                    if (statusCode == '0') {
-                        // plain message, no special operation
-                        System.out.print(message.substring(1));
-                    } else if (statusCode == '1') {
-                        // exit the client
-                        System.out.print(message.substring(1));
-                        System.exit(0);
-                    } else if (statusCode == '2') {
-                        // target user has accepted the private call
-                        String[] segments = message.split("\\s+");
-                        String host = segments[3];
-                        int port = Integer.parseInt(segments[4]);
-                        String targetUsername = segments[2];  // name of the target user (that this user is calling)
-                        System.out.print("System: " + targetUsername + "has accepted the private chat. Establishing connection...\n");
-                        userName = segments[1];
-                        Socket privateSocket = new Socket(host, port);
-                        // create input stream for this socket
-                        DataInputStream privateInput = new DataInputStream(privateSocket.getInputStream());
-                        DataOutputStream privateOutput = new DataOutputStream(privateSocket.getOutputStream());
-                        privateChatOutputs.put(targetUsername, privateOutput);
-                        privateChatSockets.put(targetUsername, privateSocket);
-                        MessageListener privateListener = new MessageListener(privateInput, false, targetUsername);
-                        privateListener.start(); 
-                    } else if (statusCode == '4') {
-                        String[] segments = message.split("\\s+");
-                        String targetUsername = segments[2];  // name of the target user (that this user is calling)
-                        System.out.print("System: Establishing connection with " + targetUsername + "...\n");
-                        userName = segments[1];
-                        // create the server socket
-                        ServerSocket privateServer = new ServerSocket(0);
-                        // tell the server the port number
-                        sendServerMessage(String.valueOf(privateServer.getLocalPort()));
-                        Socket privateClient = privateServer.accept();
-                        DataInputStream privateInput = new DataInputStream(privateClient.getInputStream());
-                        DataOutputStream privateOutput = new DataOutputStream(privateClient.getOutputStream());
-                        privateChatOutputs.put(targetUsername, privateOutput);
-                        privateChatSockets.put(targetUsername, privateClient);
-                        MessageListener privateListener = new MessageListener(privateInput, false, targetUsername);
-                        privateListener.start(); 
-                    } else if (statusCode == '3') {
-                        System.out.print(message.substring(1));
-                        // server request an answer from user, therefore enter answer mode
-                        answerMode = true;
-                    } else if (statusCode == '5') {
-                        String[] segments = message.split("\\s+");
-                        String username = segments[1];
-                        System.out.print("System: Private chat closed by " + username + "\n");
-                        // remove the output
-                        privateChatOutputs.remove(username);
-                        // close the private connection
-                        privateChatSockets.remove(username);
-                        break;
-                    }
-                } catch (EOFException e) {
-                    if (serverListener) System.out.println("System: Server is down, MessageListener is terminated.");
-                    else {
-                        System.out.println("System: Chat is ended");
-                        // remove the bookkeeping
-                        privateChatOutputs.remove(userListento);
-                        // close the private connection
-                        privateChatSockets.remove(userListento);
-                    }
-                    break;
-                } catch (IOException e) {
-                    if (serverListener) System.out.println("System: Server is down, MessageListener is terminated.");
-                    else {
-                        System.out.println("System: Chat is ended");
-                        // remove the bookkeeping
-                        privateChatOutputs.remove(userListento);
-                        // close the private connection
-                        privateChatSockets.remove(userListento);
-                    }
-                    break;
-                }
-            }
+        public void onQuestion(SkynettClient client, String text) {
+            // server request an answer from user, therefore enter answer mode, before the user can see the question
+            answerMode = true;
+            System.out.print(text);
+        }
+
+        @Override
+        public void onMemoPage(SkynettClient client, int left) {
+            if (left > 0) System.out.print("System: " + left + " more offline messages...\n");
+        }
+
+        @Override
+        public void onPrivateStarting(SkynettClient client, String peer, boolean inviter) {
+            if (inviter) System.out.print("System: " + peer + " has accepted the private chat. Establishing connection...\n");
+            else System.out.print("System: Establishing connection with " + peer + "...\n");
+        }
+
+        @Override
+        public void onPrivateMessage(SkynettClient client, String peer, String text) {
+            System.out.print(text);
+        }
+
+        @Override
+        public void onPrivateClosed(SkynettClient client, String peer, boolean byPeer) {
+            if (byPeer) System.out.print("System: Private chat closed by " + peer + "\n");
+            else System.out.println("System: Chat is ended");
+        }
+
+        @Override
+        public void onClosed(SkynettClient client) {
+            System.out.println("System: Server is down.");
+            System.exit(0);
         }
-    }
 
+        @Override
+        public void onError(SkynettClient client, Throwable error) {
+            System.out.println("System: " + error);
+        }
+    }
 
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
@@ -132,33 +76,32 @@ public class TCPClient {
             return;
         }
 
-        serverHost = "127.0.0.1";
-        serverPort = Integer.parseInt(args[0]);
-
-        // define socket for client
-        Socket clientSocket = new Socket(serverHost, serverPort);
-        privateChatOutputs = new ConcurrentHashMap<>();
-        privateChatSockets = new ConcurrentHashMap<>();
-        // define DataInputStream instance which would be used to receive response from the server
-        // define DataOutputStream instance which would be used to send message to the server
-        dataInputStream = new DataInputStream(clientSocket.getInputStream());
-        dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
-        listener = new MessageListener(dataInputStream, true, null);
-        listener.start();
+        ClientLoop loop = new ClientLoop("skynett-client");
+        ConsoleListener listener = new ConsoleListener();
+        loop.setErrorHandler(error -> listener.onError(null, error));
+        loop.start();
+        SkynettClient client = new SkynettClient(loop, "127.0.0.1", Integer.parseInt(args[0]), listener);
+        // ask for the binary protocol unless told to stick to the text one, and for compressed frames unless
+        // "-Dskynett.deflate=off"
+        client.setDeflate(!"off".equals(System.getProperty("skynett.deflate")));
+        try {
+            client.connect(!"text".equals(System.getProperty("skynett.protocol"))).join();
+        } catch (RuntimeException e) {
+            System.out.println("System: Server is down.");
+            return;
+        }
 
         // Upon connection and setup, prompt user to login by first sending a login request to the server
-        sendServerMessage("login");
+        client.send("login");
 
         // define a BufferedReader to get input from command line i.e., standard input from keyboard
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
-        while (!serverDown) {
-            String message = reader.readLine();
-
+        String message;
+        while ((message = reader.readLine()) != null) {
             // if the command is to send private message, then no need to pass the request to server as server should not know the content of the chat
             String[] commands = message.split("\\s+");
             if (!answerMode && commands[0].equals("private")) {
-                sendServerMessage("private");
                 if (commands.length < 2) {
                     System.out.print("Command usage: private target_user content\n");
                     continue;
@@ -169,56 +112,17 @@ public class TCPClient {
                 // check if has established connection with the target user
                 String targetUser = commands[1];
                 String content = message.substring(commands[0].length() + commands[1].length() + 2);
-                DataOutputStream output = privateChatOutputs.get(targetUser);
-                if (output == null) {
-                    System.out.println("You have no existing connection with " + targetUser);
-                } else {
-                    try {
-                        output.writeUTF("0(Private)" + userName + ": " + content + "\n");
-                        output.flush();
-                    } catch (EOFException e) {
-                        System.out.println("System: The chat is ended by the other side.");
-                    } catch (IOException e) {
-                        System.out.println("System: The chat is ended by the other side.");
-                    }
-                }
+                if (!client.sendPrivate(targetUser, content)) System.out.println("You have no existing connection with " + targetUser);
             } else if (!answerMode && commands[0].equals("stopprivate")) {
-                sendServerMessage("stopprivate");
-                // check if has established connection with the target user
-                String targetUser = commands[1];
-                DataOutputStream output = privateChatOutputs.get(targetUser);
-                if (output == null) {
-                    System.out.println("You have no existing connection with " + targetUser);
-                } else {
-                    try {
-                        output.writeUTF("5" + " " + userName + "\n");
-                        output.flush();
-                    } catch (EOFException e) {
-                        System.out.println("System: The chat has ended");
-                    } catch (IOException e) {
-                        System.out.println("System: The chat has ended");
-                    }
-                    privateChatSockets.get(targetUser).close();
-                    privateChatSockets.remove(targetUser);
-                    privateChatOutputs.remove(targetUser);
+                if (commands.length < 2) {
+                    System.out.print("Command usage: stopprivate target_user\n");
+                    continue;
                 }
-            } else sendServerMessage(message);
+                if (!client.stopPrivate(commands[1])) System.out.println("You have no existing connection with " + commands[1]);
+            } else client.send(message);
             // reset to command mode
             answerMode = false;
         }
+        client.close();
     }
-
-    private static void sendServerMessage(String message) {
-        try {
-            dataOutputStream.writeUTF(message);
-            dataOutputStream.flush();
-        } catch (EOFException e) {
-            System.out.println("System: Server is down.");
-            serverDown = true;
-        } catch (IOException e) {
-            System.out.println("System: Server is down.");
-            serverDown = true;
-        }
-    }
-
-}
\ No newline at end of file
+}
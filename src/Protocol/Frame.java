@@ -0,0 +1,183 @@
+package Protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One frame of the binary protocol shared by the server and the client:
+ *
+ *   int    length      number of bytes after this field
+ *   byte   version
+ *   byte   opcode
+ *   byte   flags       FLAG_DEFLATED, the rest reserved as 0
+ *   byte   argc        number of arguments
+ *   argc x (unsigned short length, UTF-8 bytes)
+ *   UTF-8 text up to the end of the frame
+ *
+ * A client asks for the binary protocol by sending HELLO_MAGIC followed by its version byte as the very first bytes
+ * of the connection, the server answers with a HELLO frame. Clients that start with a writeUTF frame instead keep
+ * using the legacy text protocol, where the first character of a message is its status code.
+ *
+ * A binary client may then send a HELLO frame naming the features it wants, DEFLATE for the frames of the server to be
+ * compressed, and the server answers with another HELLO naming the ones it turned on. A compressed frame has
+ * FLAG_DEFLATED set and its arguments and text deflated, see FrameDeflater.
+ */
+public class Frame {
+    public static final byte VERSION = 1;
+    public static final byte[] HELLO_MAGIC = { (byte) 0xFF, 'S', 'K', 'Y' };
+    public static final int LENGTH_SIZE = 4;
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_LENGTH = 4 * 1024 * 1024;
+    public static final byte FLAG_DEFLATED = 0x01;
+    // the feature of compressed frames, as named in the HELLO frames
+    public static final String DEFLATE = "deflate";
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private final Opcode opcode;
+    private final String[] args;
+    private final String text;
+
+    public Frame(Opcode opcode, String text) {
+        this(opcode, NO_ARGS, text);
+    }
+
+    public Frame(Opcode opcode, String[] args, String text) {
+        this.opcode = opcode;
+        this.args = args;
+        this.text = text;
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+
+    public String getArg(int index) {
+        return args[index];
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * a message of the legacy text protocol as a frame, the arguments of the private chat messages are split out
+     */
+    public static Frame fromLegacy(String message) {
+        if (message.isEmpty()) return new Frame(Opcode.TEXT, "");
+        Opcode opcode = Opcode.ofStatusCode(message.charAt(0));
+        if (opcode == null) return new Frame(Opcode.TEXT, message);
+        if (opcode == Opcode.PRIVATE_ACCEPTED || opcode == Opcode.PRIVATE_LISTEN || opcode == Opcode.PRIVATE_CLOSED
+                || opcode == Opcode.MEMO_PAGE || opcode == Opcode.PRIVATE_HELLO || opcode == Opcode.SESSION) {
+            String rest = message.substring(1).trim();
+            return new Frame(opcode, rest.isEmpty() ? NO_ARGS : rest.split("\\s+"), "");
+        }
+        return new Frame(opcode, message.substring(1));
+    }
+
+    /**
+     * the same message in the legacy text protocol
+     */
+    public String toLegacy() {
+        if (opcode == Opcode.COMMAND) return text;
+        if (args.length == 0) return opcode.getStatusCode() + text;
+        StringBuilder sb = new StringBuilder().append(opcode.getStatusCode());
+        for (String arg : args) sb.append(' ').append(arg);
+        return sb.toString();
+    }
+
+    /**
+     * the whole frame, length included
+     */
+    public byte[] encode() throws ProtocolException {
+        byte[][] argBytes = new byte[args.length][];
+        int length = HEADER_SIZE;
+        for (int i = 0; i < args.length; i++) {
+            argBytes[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            if (argBytes[i].length > 0xFFFF) throw new ProtocolException("argument too long: " + argBytes[i].length + " bytes");
+            length += 2 + argBytes[i].length;
+        }
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        length += textBytes.length;
+        if (length > MAX_LENGTH) throw new ProtocolException("frame too long: " + length + " bytes");
+
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + length);
+        frame.putInt(length);
+        frame.put(VERSION);
+        frame.put(opcode.getCode());
+        frame.put((byte) 0);
+        frame.put((byte) args.length);
+        for (byte[] arg : argBytes) {
+            frame.putShort((short) arg.length);
+            frame.put(arg);
+        }
+        frame.put(textBytes);
+        return frame.array();
+    }
+
+    // size of the whole frame starting at the position of the buffer, -1 if its length has not fully arrived yet
+    public static int peekSize(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < LENGTH_SIZE) return -1;
+        int length = buffer.getInt(buffer.position());
+        if (length < HEADER_SIZE || length > MAX_LENGTH) throw new ProtocolException("bad frame length " + length);
+        return LENGTH_SIZE + length;
+    }
+
+    /**
+     * decode the frame body, i.e. everything after the length
+     */
+    public static Frame decode(byte[] bytes, int offset, int length) throws ProtocolException {
+        return decode(bytes, offset, length, null);
+    }
+
+    /**
+     * decode the frame body, inflated with the inflater of the connection if it is compressed
+     */
+    public static Frame decode(byte[] bytes, int offset, int length, FrameInflater inflater) throws ProtocolException {
+        ByteBuffer body = ByteBuffer.wrap(bytes, offset, length);
+        try {
+            byte version = body.get();
+            if (version != VERSION) throw new ProtocolException("unsupported protocol version " + version);
+            Opcode opcode = Opcode.of(body.get());
+            if (opcode == null) throw new ProtocolException("unknown opcode");
+            byte flags = body.get();
+            int argc = body.get() & 0xFF;
+            if ((flags & FLAG_DEFLATED) != 0) {
+                if (inflater == null) throw new ProtocolException("compressed frame without compression");
+                bytes = inflater.inflate(bytes, body.position(), body.remaining());
+                body = ByteBuffer.wrap(bytes);
+            }
+            String[] args = argc == 0 ? NO_ARGS : new String[argc];
+            for (int i = 0; i < argc; i++) {
+                int argLength = body.getShort() & 0xFFFF;
+                args[i] = new String(bytes, body.position(), argLength, StandardCharsets.UTF_8);
+                body.position(body.position() + argLength);
+            }
+            String text = new String(bytes, body.position(), body.remaining(), StandardCharsets.UTF_8);
+            return new Frame(opcode, args, text);
+        } catch (RuntimeException e) {
+            // buffer underflow or bad argument length
+            throw new ProtocolException("malformed frame");
+        }
+    }
+
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length > MAX_LENGTH) throw new ProtocolException("bad frame length " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body, 0, length);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.write(encode());
+    }
+}
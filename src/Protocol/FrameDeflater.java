@@ -0,0 +1,99 @@
+package Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the frames sent over one connection as a single deflate stream, so every frame has the frames compressed
+ * before it as its dictionary and repeated names and phrases cost a few bytes each. A compressed frame keeps its
+ * header, FLAG_DEFLATED set, and carries its arguments and text deflated up to a sync flush, which the FrameInflater
+ * at the other end inflates with the same history. Frames below the threshold are sent as they are and stay out of
+ * the history. One writer per connection, not thread safe.
+ */
+public class FrameDeflater {
+    private static final int PREFIX = Frame.LENGTH_SIZE + Frame.HEADER_SIZE;
+
+    private final Deflater deflater;
+    private final int threshold;
+    private byte[] out = new byte[1024];
+
+    private long frames;
+    private long compressed;
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+
+    /**
+     * @param level the deflate level, 1 fastest to 9 smallest
+     * @param threshold frames shorter than this many bytes are not compressed
+     */
+    public FrameDeflater(int level, int threshold) {
+        deflater = new Deflater(level, true);
+        this.threshold = threshold;
+    }
+
+    /**
+     * the whole frame as it goes on the wire, length included, compressed if it is long enough.
+     * The given buffer is only read, the compressed frame is a buffer of its own.
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        int size = frame.remaining();
+        frames++;
+        bytesIn += size;
+        if (size < Math.max(threshold, PREFIX + 1)) {
+            bytesOut += size;
+            return frame;
+        }
+        long start = System.nanoTime();
+        byte[] bytes = frame.array();
+        int from = frame.arrayOffset() + frame.position();
+        System.arraycopy(bytes, from, out, 0, PREFIX);
+        out[Frame.LENGTH_SIZE + 2] |= Frame.FLAG_DEFLATED;
+        deflater.setInput(bytes, from + PREFIX, size - PREFIX);
+        int used = PREFIX;
+        while (true) {
+            // all of it is out once the deflater leaves room to spare
+            used += deflater.deflate(out, used, out.length - used, Deflater.SYNC_FLUSH);
+            if (used < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        ByteBuffer result = ByteBuffer.wrap(Arrays.copyOf(out, used));
+        result.putInt(0, used - Frame.LENGTH_SIZE);
+        compressed++;
+        bytesOut += used;
+        nanos += System.nanoTime() - start;
+        return result;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * what the compression has done so far, e.g. for the log
+     */
+    public String summary() {
+        return String.format("%d of %d frames compressed, %d bytes sent as %d (%.0f%%), %.1f ms", compressed, frames,
+                bytesIn, bytesOut, bytesIn == 0 ? 100.0 : 100.0 * bytesOut / bytesIn, nanos / 1e6);
+    }
+
+    /**
+     * free the native memory of the deflater, it cannot be used after this
+     */
+    public void end() {
+        deflater.end();
+    }
+}
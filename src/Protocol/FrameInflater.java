@@ -0,0 +1,45 @@
+package Protocol;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the compressed frames received over one connection, in the order they were sent, see FrameDeflater.
+ * Not thread safe, one reader per connection.
+ */
+public class FrameInflater {
+    private final Inflater inflater = new Inflater(true);
+    private byte[] out = new byte[1024];
+
+    /**
+     * the arguments and text of a compressed frame, from the deflated bytes following its header
+     */
+    public byte[] inflate(byte[] bytes, int offset, int length) throws ProtocolException {
+        inflater.setInput(bytes, offset, length);
+        int used = 0;
+        try {
+            while (true) {
+                int inflated = inflater.inflate(out, used, out.length - used);
+                used += inflated;
+                if (used == out.length) {
+                    if (out.length >= Frame.MAX_LENGTH) throw new ProtocolException("compressed frame too long");
+                    out = Arrays.copyOf(out, out.length * 2);
+                } else if (inflater.needsInput() || inflated == 0) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("malformed compressed frame");
+        }
+        return Arrays.copyOf(out, used);
+    }
+
+    /**
+     * free the native memory of the inflater, it cannot be used after this
+     */
+    public void end() {
+        inflater.end();
+    }
+}
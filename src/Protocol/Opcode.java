@@ -0,0 +1,53 @@
+package Protocol;
+
+/**
+ * The kinds of frames of the binary protocol, with the status code each one has in the legacy text protocol.
+ */
+public enum Opcode {
+    HELLO(0x00, ' '),               // protocol negotiation, args: version and features on, from a client: features wanted
+    TEXT(0x01, '0'),                // plain message to print
+    EXIT(0x02, '1'),                // print the message and exit the client
+    PRIVATE_ACCEPTED(0x03, '2'),    // private chat accepted, args: caller, target, host, port
+    QUESTION(0x04, '3'),            // print the question, the next line of the user is the answer
+    PRIVATE_LISTEN(0x05, '4'),      // listen for a private chat, args: this user, the other user
+    PRIVATE_CLOSED(0x06, '5'),      // private chat closed, args: the user closing it
+    MEMO_PAGE(0x07, '6'),           // end of a page of offline messages, args: messages in the page, messages left
+    PRIVATE_HELLO(0x08, '7'),       // first frame of a direct connection between users, args: the user connecting, the user it is for
+    SESSION(0x09, '8'),             // the token to resume the session with, args: token, user, seconds it is good for once lost
+    COMMAND(0x10, ' '),             // a command line (or an answer) from the client
+    CLUSTER(0x20, ' ');             // between the nodes of a cluster, args: the kind of message and its fields
+
+    // the opcodes by code and by status code, values() copies its array on every call
+    private static final Opcode[] byCode = new Opcode[256];
+    private static final Opcode[] byStatusCode = new Opcode[128];
+    static {
+        for (Opcode opcode : values()) {
+            byCode[opcode.code & 0xFF] = opcode;
+            if (opcode.statusCode != ' ') byStatusCode[opcode.statusCode] = opcode;
+        }
+    }
+
+    private final byte code;
+    private final char statusCode;
+
+    Opcode(int code, char statusCode) {
+        this.code = (byte) code;
+        this.statusCode = statusCode;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public char getStatusCode() {
+        return statusCode;
+    }
+
+    public static Opcode of(byte code) {
+        return byCode[code & 0xFF];
+    }
+
+    public static Opcode ofStatusCode(char statusCode) {
+        return statusCode < byStatusCode.length ? byStatusCode[statusCode] : null;
+    }
+}
@@ -1,27 +1,38 @@
 package Server;
 
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class Account {
+    // accounts are numbered densely in the order they are loaded or created
+    private static final AtomicInteger nextId = new AtomicInteger();
+    // the block lists of all the accounts
+    private static final BlockIndex blocks = new BlockIndex();
+
+    private final int id;
     private String userName;
-    private Set<Account> blockList;
-    private Boolean online = false;
-    private LocalDateTime lastLogin = null;
-    private LocalDateTime lastActive = null;
-    private String passWord;
-    private LocalDateTime lockedUntil = null;
+    // whether the account is online in the lowest bit, the time it is locked until above it,
+    // every change of either is a compare and set of the whole
+    private final AtomicLong state = new AtomicLong();
+    // epoch milliseconds of the CoarseClock, 0 for never
+    private volatile long lastLogin = 0;
+    // the stored password, a PasswordHasher hash or the plain text of an account from before hashing
+    private volatile String passWord;
 
 
-    Account(String username, String password) {
+    public Account(String username, String password) {
         userName = username;
         passWord = password;
-        blockList = new HashSet<>();
+        id = nextId.getAndIncrement();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static BlockIndex blocks() {
+        return blocks;
     }
 
     /**
@@ -32,42 +43,90 @@ public class Account {
      * 2 for already logged in
      * 3 for currently locked
      */
-    public synchronized int login(String key) {
+    public int login(String key) {
         // if the account is locked, regardless of the password entered, notice the client
         if (isLocked()) return 3;
-        if (key.equals(passWord)) {
+        // the expensive check, done before touching the state so other logins to this account are not held up
+        return enter(PasswordHasher.verify(key, passWord));
+    }
+
+    /**
+     * log in once the password has been checked, same results as login
+     */
+    int enter(boolean passwordMatches) {
+        while (true) {
+            long current = state.get();
+            long now = CoarseClock.millis();
+            if (lockedUntil(current) > now) return 3;
+            if (!passwordMatches) return 1;
             // if the password entered is right, but the account is logged in, notice the client
-            if (online) return 2;
+            if (isOnline(current)) return 2;
             // log this account in if it is not currently locked, the password entered is correct and it is not already logged in
-            else {
-                lastLogin = LocalDateTime.now();
-                online = true;
+            if (state.compareAndSet(current, current | 1)) {
+                lastLogin = now;
                 return 0;
             }
-        } else return 1;
+        }
     }
 
-    public void noticeActive() {
-        lastActive = LocalDateTime.now();
+    /**
+     * back online for a session resumed with its token, still online if the connection it was on is only now
+     * being dropped, the time of the last login stays as it is
+     * @return 0, or 3 if the account is locked
+     */
+    int resume() {
+        while (true) {
+            long current = state.get();
+            if (lockedUntil(current) > CoarseClock.millis()) return 3;
+            if (isOnline(current) || state.compareAndSet(current, current | 1)) return 0;
+        }
+    }
+
+    /**
+     * hash the password again if the stored one is plain text or cheaper than the current cost,
+     * the key must be the password that has just logged in
+     * @return the new stored password, null if it was already up to date
+     */
+    String upgrade(String key) {
+        if (!PasswordHasher.needsRehash(passWord)) return null;
+        passWord = PasswordHasher.hash(key);
+        return passWord;
     }
 
     public void noticeLocked(int second) {
-        lockedUntil = LocalDateTime.now();
-        lockedUntil = lockedUntil.plusSeconds(second);
+        long until = CoarseClock.millis() + second * 1000L;
+        long current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, until << 1 | (current & 1)));
     }
 
     public void logout() {
-        online = false;
+        long current;
+        do {
+            current = state.get();
+        } while (isOnline(current) && !state.compareAndSet(current, current & ~1L));
     }
 
-    public LocalDateTime getLastLogin() {
+    // epoch milliseconds of the last login, 0 for never
+    public long getLastLogin() {
         return lastLogin;
     }
-    
-    private Boolean isLocked() {
-        if (lockedUntil != null) {
-            return LocalDateTime.now().isBefore(lockedUntil);
-        } else return false;
+
+    public boolean isOnline() {
+        return isOnline(state.get());
+    }
+
+    private boolean isLocked() {
+        return lockedUntil(state.get()) > CoarseClock.millis();
+    }
+
+    private static boolean isOnline(long state) {
+        return (state & 1) != 0;
+    }
+
+    private static long lockedUntil(long state) {
+        return state >>> 1;
     }
 
     public String getUsername() {
@@ -76,20 +135,16 @@ public class Account {
 
     // add the given account to this account's blocking list
     public void block(Account blocked) {
-        blockList.add(blocked);
+        blocks.block(id, blocked.id);
     }
 
     // remove the given account from this account's blocking list
     public void unblock(Account blocked) {
-        blockList.remove(blocked);
+        blocks.unblock(id, blocked.id);
     }
 
     // check if given account has been blocked by this account
-    public Boolean ifblocked(Account act) {
-        return blockList.contains(act);
-    }
-    
-    public Boolean isLoggedInWithin(int sec) {
-        return !LocalDateTime.now().isAfter(lastLogin.plusSeconds(sec));
+    public boolean ifblocked(Account act) {
+        return blocks.isBlocked(id, act.id);
     }
 }
@@ -0,0 +1,58 @@
+package Server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Who blocks whom, by account id, kept both ways: the accounts each account blocks and the accounts blocking it.
+ * Lookups read immutable bitmaps without locking, a broadcast takes the accounts blocking the sender in one go.
+ */
+public class BlockIndex {
+    private final IdTable<CompactBitmap> blocking = new IdTable<>();
+    private final IdTable<CompactBitmap> blockedBy = new IdTable<>();
+    // keeps the two directions in step
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public void block(int blocker, int blocked) {
+        writeLock.lock();
+        try {
+            blocking.set(blocker, of(blocking, blocker).with(blocked));
+            blockedBy.set(blocked, of(blockedBy, blocked).with(blocker));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void unblock(int blocker, int blocked) {
+        writeLock.lock();
+        try {
+            blocking.set(blocker, emptyToNull(of(blocking, blocker).without(blocked)));
+            blockedBy.set(blocked, emptyToNull(of(blockedBy, blocked).without(blocker)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // whether blocker has blocked the other account
+    public boolean isBlocked(int blocker, int blocked) {
+        return of(blocking, blocker).contains(blocked);
+    }
+
+    // the accounts the given account has blocked
+    public CompactBitmap blocking(int blocker) {
+        return of(blocking, blocker);
+    }
+
+    // the accounts that have blocked the given account
+    public CompactBitmap blockedBy(int blocked) {
+        return of(blockedBy, blocked);
+    }
+
+    private static CompactBitmap of(IdTable<CompactBitmap> table, int id) {
+        CompactBitmap set = table.get(id);
+        return set == null ? CompactBitmap.EMPTY : set;
+    }
+
+    private static CompactBitmap emptyToNull(CompactBitmap set) {
+        return set.isEmpty() ? null : set;
+    }
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * A named room and the accounts in it. The members are an immutable bitmap of account ids, replaced on every join and
+ * leave, so a message to the room iterates the members without locking and only costs as much as the room is large.
+ * The messages of one room are handed to the fan-out one at a time, so every member gets them in the same order.
+ */
+public class ChatRoom {
+    private final String name;
+    private volatile CompactBitmap members = CompactBitmap.EMPTY;
+    // keeps the order of the messages, the members only change one at a time through ChatRooms
+    private final ReentrantLock publishLock = new ReentrantLock();
+
+    ChatRoom(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CompactBitmap getMembers() {
+        return members;
+    }
+
+    public boolean isMember(int id) {
+        return members.contains(id);
+    }
+
+    public int size() {
+        return members.cardinality();
+    }
+
+    boolean join(int id) {
+        CompactBitmap current = members;
+        if (current.contains(id)) return false;
+        members = current.with(id);
+        return true;
+    }
+
+    boolean leave(int id) {
+        CompactBitmap current = members;
+        if (!current.contains(id)) return false;
+        members = current.without(id);
+        return true;
+    }
+
+    /**
+     * queue a message for every member but the sender and those who have blocked the sender
+     */
+    public void publish(FanOut fanOut, int senderId, IntConsumer deliver) {
+        publishLock.lock();
+        try {
+            fanOut.publish(members.andNot(Account.blocks().blockedBy(senderId)).without(senderId), deliver);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rooms by name. A room comes into being with its first member and is gone with its last one, joining and leaving
+ * are atomic with that, so nobody ever joins a room that is being dropped.
+ */
+public class ChatRooms {
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    // the room, null if nobody is in it
+    public ChatRoom get(String name) {
+        return rooms.get(name);
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * add the account to the room, creating the room if needed
+     * @return the room, null if the account was in it already
+     */
+    public ChatRoom join(String name, int id) {
+        boolean[] joined = new boolean[1];
+        ChatRoom room = rooms.compute(name, (key, existing) -> {
+            ChatRoom target = existing != null ? existing : new ChatRoom(key);
+            joined[0] = target.join(id);
+            return target;
+        });
+        return joined[0] ? room : null;
+    }
+
+    /**
+     * take the account out of the room, dropping the room once it is empty
+     * @return whether the account was in the room
+     */
+    public boolean leave(String name, int id) {
+        boolean[] left = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            left[0] = room.leave(id);
+            return room.getMembers().isEmpty() ? null : room;
+        });
+        return left[0];
+    }
+}
@@ -0,0 +1,492 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+
+/**
+ * The servers of a cluster and the bus between them. Every node tells the others who logs in and out on it, so each
+ * one knows which node a user is on and routes the messages for that user there. The broadcasts go to every other
+ * node as a single frame and are fanned out there. The accounts and the block lists are the same on every node,
+ * the offline messages of a user are kept by one node, its home, found from the username.
+ *
+ * Each node connects to every other one and only writes to that connection, the frames queued for a node are written
+ * with one flush per batch. A node that cannot be reached keeps its frames queued until it can, up to the capacity
+ * of the queue; a node not heard of for a while is taken as down and its users as logged out.
+ * Delivery is at most once: what is on the wire when a connection breaks is lost.
+ *
+ * The bus only listens on the address of this node. A connecting node is sent a random challenge and has to answer
+ * with its number and the HMAC of the challenge under the secret shared by the cluster; without a secret it has to
+ * connect from the address it has in the list of nodes. Nothing it sends is handled before that.
+ */
+public class Cluster {
+    private static final String HELLO = "hello";
+    private static final String PING = "ping";
+    private static final String ONLINE = "online";
+    private static final String OFFLINE = "offline";
+    private static final String CHAT = "chat";
+    private static final String MEMO = "memo";
+    private static final String CLAIM = "claim";
+    private static final String FRAME = "frame";
+    private static final String BROADCAST = "broadcast";
+    private static final String NOTICE = "notice";
+    private static final String INVITE = "invite";
+    private static final String BLOCK = "block";
+    private static final String UNBLOCK = "unblock";
+    private static final String REGISTER = "register";
+    private static final String PAGE = "page";
+    private static final String RECEIVED = "received";
+    private static final String CHALLENGE = "challenge";
+    private static final String MAC = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final int BATCH = 256;
+    private static final long PING_MILLIS = 1000;
+    // a node not heard of for this long is down
+    private static final int SILENCE_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /**
+     * what this node does with the messages of the other nodes, called on the thread reading from the other node
+     */
+    public interface Handler {
+        // a user has logged in on another node, at the given time in epoch milliseconds
+        void online(String username, long loginTime);
+
+        // a user of another node has logged out, or the node is down
+        void offline(String username);
+
+        // a chat message for a user of this node, or an offline message for a user at home on it,
+        // kept as a memo if the user is not here
+        void chat(Message m);
+
+        // a frame for a user of this node, dropped if the user is gone
+        void frame(String receiver, Frame frame);
+
+        // a broadcast or a system notice of a user of another node, for the users of this node
+        void broadcast(String sender, String content, boolean notice);
+
+        // a user of another node invites a user of this node to a private chat
+        void invite(int node, String inviter, String invitee);
+
+        void block(String blocker, String blocked, boolean block);
+
+        // an account created on another node
+        void registered(String username, String secret);
+
+        // a user at home on this node has logged in on the given node and wants its offline messages
+        void claim(int node, String username);
+
+        // the node has received the page of offline messages of the user sent to it with page
+        void received(int node, String username, int count);
+    }
+
+    private final int self;
+    private final InetSocketAddress[] nodes;
+    private final Handler handler;
+    // the shared secret the nodes prove they know, null to check their addresses instead
+    private final byte[] secret;
+    private final Link[] links;
+    // the node of every user logged in on another node
+    private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+    // the users logged in on this node and their login times, told to a node whenever it connects
+    private final Map<String, Long> local = new ConcurrentHashMap<>();
+    // the connection each node is read from at the moment, a replaced one must not log out the users of its node
+    private final Socket[] inbound;
+
+    /**
+     * this node is nodes[self], the addresses of the bus in the same order on every node, and the secret is the same
+     * on every node or null on every node
+     */
+    Cluster(int self, List<InetSocketAddress> nodes, String secret, Handler handler) {
+        if (self < 0 || self >= nodes.size()) throw new IllegalArgumentException("node " + self + " of " + nodes.size());
+        this.self = self;
+        this.nodes = nodes.toArray(new InetSocketAddress[0]);
+        this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.handler = handler;
+        links = new Link[this.nodes.length];
+        inbound = new Socket[this.nodes.length];
+        for (int node = 0; node < this.nodes.length; node++) {
+            if (node != self) links[node] = new Link(node);
+        }
+    }
+
+    // a server on its own
+    static Cluster alone() {
+        return new Cluster(0, Arrays.asList((InetSocketAddress) null), null, null);
+    }
+
+    /**
+     * parse "host:port,host:port,..."
+     */
+    static List<InetSocketAddress> parse(String nodes) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String node : nodes.split("\\s*,\\s*")) {
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("no port in cluster node " + node);
+            addresses.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * listen for the other nodes and start connecting to them
+     */
+    public void start() throws IOException {
+        if (nodes.length == 1) return;
+        ServerSocket bus = new ServerSocket();
+        bus.bind(nodes[self]);
+        daemon("skynett-cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = bus.accept();
+                    daemon("skynett-cluster-in-" + socket.getPort(), () -> read(socket));
+                } catch (IOException e) {
+                    Log.error("===== the cluster bus stopped accepting =====", e);
+                    return;
+                }
+            }
+        });
+        for (Link link : links) {
+            if (link != null) daemon("skynett-cluster-out-" + link.node, link);
+        }
+        Log.info("===== node " + self + " of a cluster of " + nodes.length + ", bus on " + nodes[self]
+                + (secret != null ? " with a shared secret" : " checking the node addresses") + " =====");
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * the node the user is logged in on, -1 if it is not logged in on another node
+     */
+    public int locate(String username) {
+        Integer node = routes.get(username);
+        return node == null ? -1 : node;
+    }
+
+    // the node keeping the offline messages of the user
+    public int home(String username) {
+        return Math.floorMod(username.hashCode(), nodes.length);
+    }
+
+    public boolean isHome(String username) {
+        return home(username) == self;
+    }
+
+    public void online(String username, long loginTime) {
+        local.put(username, loginTime);
+        sendAll(message(ONLINE, username, String.valueOf(loginTime)));
+    }
+
+    public void offline(String username) {
+        if (local.remove(username) != null) sendAll(message(OFFLINE, username));
+    }
+
+    public void chat(int node, Message m) {
+        send(node, withText(m.getContent(), CHAT, m.getSender(), m.getReceiver()));
+    }
+
+    // keep the message at the home of the receiver
+    public void memo(Message m) {
+        send(home(m.getReceiver()), withText(m.getContent(), MEMO, m.getSender(), m.getReceiver()));
+    }
+
+    // ask the home of the user for its offline messages, they come back as chat messages a page at a time
+    public void claim(String username) {
+        send(home(username), message(CLAIM, username));
+    }
+
+    // the page of offline messages of the user sent to the node as chat messages is complete, the node answers
+    // once it has them all, until then they stay pending here
+    public void page(int node, String username, int count) {
+        send(node, message(PAGE, username, String.valueOf(count)));
+    }
+
+    public void frame(int node, String receiver, Frame frame) {
+        String[] args = new String[3 + frame.getArgs().length];
+        args[0] = FRAME;
+        args[1] = receiver;
+        args[2] = frame.getOpcode().name();
+        System.arraycopy(frame.getArgs(), 0, args, 3, frame.getArgs().length);
+        send(node, new Frame(Opcode.CLUSTER, args, frame.getText()));
+    }
+
+    public void broadcast(String sender, String content) {
+        sendAll(withText(content, BROADCAST, sender));
+    }
+
+    public void notice(String sender, String content) {
+        sendAll(withText(content, NOTICE, sender));
+    }
+
+    public void invite(int node, String inviter, String invitee) {
+        send(node, message(INVITE, inviter, invitee));
+    }
+
+    public void block(String blocker, String blocked, boolean block) {
+        sendAll(message(block ? BLOCK : UNBLOCK, blocker, blocked));
+    }
+
+    public void registered(String username, String secret) {
+        sendAll(message(REGISTER, username, secret));
+    }
+
+    private static Frame message(String... args) {
+        return new Frame(Opcode.CLUSTER, args, "");
+    }
+
+    private static Frame withText(String text, String... args) {
+        return new Frame(Opcode.CLUSTER, args, text);
+    }
+
+    private void send(int node, Frame frame) {
+        if (links[node] != null) links[node].send(frame);
+    }
+
+    private void sendAll(Frame frame) {
+        for (Link link : links) {
+            if (link != null) link.send(frame);
+        }
+    }
+
+    // read the frames of another node until it goes away
+    private void read(Socket socket) {
+        int node = -1;
+        try {
+            socket.setSoTimeout(SILENCE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] bytes = new byte[18];
+            random.nextBytes(bytes);
+            String challenge = Base64.getEncoder().encodeToString(bytes);
+            message(CHALLENGE, challenge).write(out);
+            out.flush();
+            int claimed = authenticate(socket, challenge, Frame.read(in));
+            if (claimed < 0) throw new IOException("not a node of the cluster");
+            node = claimed;
+            Socket replaced;
+            synchronized (inbound) {
+                replaced = inbound[node];
+                inbound[node] = socket;
+            }
+            if (replaced != null) replaced.close();
+            // the node tells everyone on it again as it connects
+            forget(node);
+            Log.info("===== node " + node + " connected =====");
+            while (true) {
+                Frame frame = Frame.read(in);
+                try {
+                    handle(node, frame);
+                } catch (RuntimeException e) {
+                    Log.error("===== cannot handle a message from node " + node + " =====", e);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            if (node >= 0) Log.warn("===== node " + node + " disconnected, " + e.getMessage() + " =====");
+            else Log.warn("===== cluster bus connection from " + socket.getRemoteSocketAddress() + " turned away, " + e.getMessage() + " =====");
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            boolean current = false;
+            if (node >= 0) {
+                synchronized (inbound) {
+                    if (inbound[node] == socket) {
+                        inbound[node] = null;
+                        current = true;
+                    }
+                }
+            }
+            if (current) forget(node);
+        }
+    }
+
+    // the node a hello comes from, -1 if it is not a node of the cluster or cannot prove it
+    private int authenticate(Socket socket, String challenge, Frame hello) {
+        if (hello.getOpcode() != Opcode.CLUSTER || hello.getArgs().length != 3 || !hello.getArg(0).equals(HELLO)) return -1;
+        int node;
+        try {
+            node = Integer.parseInt(hello.getArg(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (node < 0 || node >= nodes.length || node == self) return -1;
+        if (secret == null) return socket.getInetAddress().equals(nodes[node].getAddress()) ? node : -1;
+        byte[] expected = proof(challenge, node).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, hello.getArg(2).getBytes(StandardCharsets.UTF_8)) ? node : -1;
+    }
+
+    // what the node answers to the challenge, empty without a secret
+    private String proof(String challenge, int node) {
+        if (secret == null) return "";
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(new SecretKeySpec(secret, MAC));
+            return Base64.getEncoder().encodeToString(mac.doFinal((challenge + " " + node).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC + " is not available", e);
+        }
+    }
+
+    // the users of the node are logged out as far as this node knows
+    private void forget(int node) {
+        for (Map.Entry<String, Integer> route : routes.entrySet()) {
+            if (route.getValue() == node && routes.remove(route.getKey(), node)) handler.offline(route.getKey());
+        }
+    }
+
+    private void handle(int node, Frame frame) {
+        if (frame.getOpcode() != Opcode.CLUSTER || frame.getArgs().length == 0) return;
+        String[] args = frame.getArgs();
+        switch (args[0]) {
+            case PING:
+                break;
+            case ONLINE:
+                routes.put(args[1], node);
+                handler.online(args[1], Long.parseLong(args[2]));
+                break;
+            case OFFLINE:
+                if (routes.remove(args[1], node)) handler.offline(args[1]);
+                break;
+            case CHAT:
+            case MEMO:
+                handler.chat(new Message(args[1], args[2], frame.getText()));
+                break;
+            case CLAIM:
+                handler.claim(node, args[1]);
+                break;
+            case PAGE:
+                // the chat messages of the page came before it on the same connection and have been handled
+                send(node, message(RECEIVED, args[1], args[2]));
+                break;
+            case RECEIVED:
+                handler.received(node, args[1], Integer.parseInt(args[2]));
+                break;
+            case FRAME:
+                handler.frame(args[1], new Frame(Opcode.valueOf(args[2]), Arrays.copyOfRange(args, 3, args.length), frame.getText()));
+                break;
+            case BROADCAST:
+            case NOTICE:
+                handler.broadcast(args[1], frame.getText(), args[0].equals(NOTICE));
+                break;
+            case INVITE:
+                handler.invite(node, args[1], args[2]);
+                break;
+            case BLOCK:
+            case UNBLOCK:
+                handler.block(args[1], args[2], args[0].equals(BLOCK));
+                break;
+            case REGISTER:
+                handler.registered(args[1], args[2]);
+                break;
+            default:
+                Log.warn("===== unknown cluster message " + args[0] + " from node " + node + " =====");
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // the connection to one other node and the frames waiting for it, written by a thread of its own
+    private class Link implements Runnable {
+        private final int node;
+        private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        void send(Frame frame) {
+            if (!queue.offer(frame)) Log.warn("===== the queue of node " + node + " is full, message dropped =====");
+        }
+
+        @Override
+        public void run() {
+            List<Frame> batch = new ArrayList<>(BATCH);
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    // from the address of this node, the other node may check it
+                    socket.bind(new InetSocketAddress(nodes[self].getAddress(), 0));
+                    socket.connect(nodes[node], (int) RECONNECT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(SILENCE_MILLIS);
+                    Frame challenge = Frame.read(new DataInputStream(socket.getInputStream()));
+                    if (challenge.getOpcode() != Opcode.CLUSTER || challenge.getArgs().length != 2
+                            || !challenge.getArg(0).equals(CHALLENGE)) {
+                        throw new IOException("not a node of the cluster");
+                    }
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    message(HELLO, String.valueOf(self), proof(challenge.getArg(1), self)).write(out);
+                    // everyone logged in here, what is queued already may repeat some of it in the order it happened
+                    for (Map.Entry<String, Long> user : local.entrySet()) {
+                        message(ONLINE, user.getKey(), String.valueOf(user.getValue())).write(out);
+                    }
+                    out.flush();
+                    Log.info("===== connected to node " + node + " =====");
+                    while (true) {
+                        Frame first = queue.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first == null) first = message(PING);
+                        batch.add(first);
+                        queue.drainTo(batch, BATCH - 1);
+                        for (Frame frame : batch) {
+                            try {
+                                frame.write(out);
+                            } catch (ProtocolException e) {
+                                Log.warn("===== message to node " + node + " dropped, " + e.getMessage() + " =====");
+                            }
+                        }
+                        batch.clear();
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    batch.clear();
+                    Log.debug("===== cannot reach node " + node + ", " + e.getMessage() + " =====");
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
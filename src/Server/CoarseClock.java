@@ -0,0 +1,33 @@
+package Server;
+
+/**
+ * Epoch time in milliseconds, read from a field that a background thread refreshes every few milliseconds, so the
+ * hot paths neither call into the system clock nor allocate. It never goes back, even when the system clock does.
+ */
+public class CoarseClock {
+    private static final long RESOLUTION_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(RESOLUTION_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = Math.max(now, System.currentTimeMillis());
+            }
+        }, "skynett-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    public static long millis() {
+        return now;
+    }
+}
@@ -0,0 +1,94 @@
+package Server;
+
+/**
+ * One line from a client split into whitespace separated tokens in a single pass, without a regex and without
+ * allocating: only the bounds of the tokens are kept, a token becomes a String when a handler asks for it.
+ * A client keeps one instance and resets it with every line, so it must not be shared between threads.
+ */
+public class CommandLine {
+    // the bounds of more tokens are not kept, no command needs them, they are only counted
+    private static final int MAX_TOKENS = 8;
+
+    private final int[] starts = new int[MAX_TOKENS];
+    private final int[] ends = new int[MAX_TOKENS];
+    private String text = "";
+    private int size;
+
+    /**
+     * tokenize a new line, the tokens of the previous one are forgotten
+     */
+    public CommandLine reset(String line) {
+        text = line;
+        size = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            while (i < length && isSpace(line.charAt(i))) i++;
+            if (i == length) return this;
+            int start = i;
+            while (i < length && !isSpace(line.charAt(i))) i++;
+            if (size < MAX_TOKENS) {
+                starts[size] = start;
+                ends[size] = i;
+            }
+            size++;
+        }
+    }
+
+    // the same characters as \s of a regex
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // the number of tokens, the command itself included
+    public int size() {
+        return size;
+    }
+
+    // the number of tokens after the command
+    public int arguments() {
+        return Math.max(0, size - 1);
+    }
+
+    /**
+     * whether the token is the given word, without making a String of it
+     */
+    public boolean is(int index, String word) {
+        check(index);
+        int length = ends[index] - starts[index];
+        return length == word.length() && text.regionMatches(starts[index], word, 0, length);
+    }
+
+    /**
+     * the hash of the token, the same as the hash of the token as a String
+     */
+    public int hash(int index) {
+        check(index);
+        int hash = 0;
+        for (int i = starts[index]; i < ends[index]; i++) hash = 31 * hash + text.charAt(i);
+        return hash;
+    }
+
+    public String get(int index) {
+        check(index);
+        return text.substring(starts[index], ends[index]);
+    }
+
+    /**
+     * the line from the token on, as typed, e.g. the content of a message
+     */
+    public String rest(int index) {
+        check(index);
+        return text.substring(starts[index]);
+    }
+
+    private void check(int index) {
+        if (index < 0 || index >= Math.min(size, MAX_TOKENS)) {
+            throw new IndexOutOfBoundsException("token " + index + " of " + size);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package Server;
+
+/**
+ * The commands a client may send, looked up by the first token of its line without turning the token into a String.
+ * Every command declares the arguments it needs, so a line that does not have them is answered with the usage of the
+ * command before its handler is called. Commands are registered once at startup, lookups take no lock.
+ */
+public class CommandRegistry<C> {
+
+    public interface Handler<C> {
+        /**
+         * handle the line, false if the arguments do not make sense, the client is then sent the usage
+         */
+        boolean handle(C client, CommandLine line);
+    }
+
+    public static class Command<C> {
+        private final String name;
+        private final int arguments;
+        private final String usage;
+        private final Handler<C> handler;
+        private String emptyPayload;
+        private boolean anonymous = false;
+
+        private Command(String name, int arguments, String usage, Handler<C> handler) {
+            this.name = name;
+            this.arguments = arguments;
+            this.usage = "Command usage: " + usage;
+            this.handler = handler;
+        }
+
+        /**
+         * the last argument is free text, a line that has all the arguments but this one gets the error instead of
+         * the usage
+         */
+        public Command<C> payload(String error) {
+            emptyPayload = error;
+            return this;
+        }
+
+        /**
+         * the command may be sent before logging in
+         */
+        public Command<C> anonymous() {
+            anonymous = true;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAnonymous() {
+            return anonymous;
+        }
+
+        public String getUsage() {
+            return usage;
+        }
+
+        /**
+         * what is wrong with the arguments of the line, null if the command can be handled
+         */
+        public String check(CommandLine line) {
+            int given = line.arguments();
+            if (given >= arguments) return null;
+            if (emptyPayload != null && given == arguments - 1) return emptyPayload;
+            return usage;
+        }
+
+        /**
+         * handle the line, the arguments checked already, the usage if they still do not make sense, otherwise null
+         */
+        public String run(C client, CommandLine line) {
+            return handler.handle(client, line) ? null : usage;
+        }
+    }
+
+    // open addressing by the hash of the name, at most half full
+    private Command<C>[] table = newTable(16);
+    private int count = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <C> Command<C>[] newTable(int size) {
+        return (Command<C>[]) new Command[size];
+    }
+
+    /**
+     * add a command taking at least the given number of arguments, described by the usage
+     */
+    public Command<C> register(String name, int arguments, String usage, Handler<C> handler) {
+        if (find(name.hashCode(), name, null) != null) throw new IllegalArgumentException("command " + name + " registered twice");
+        if (2 * (count + 1) > table.length) {
+            Command<C>[] old = table;
+            table = newTable(old.length * 2);
+            for (Command<C> command : old) if (command != null) insert(command);
+        }
+        Command<C> command = new Command<>(name, arguments, usage, handler);
+        insert(command);
+        count++;
+        return command;
+    }
+
+    /**
+     * the command named by the first token of the line, null if there is none
+     */
+    public Command<C> find(CommandLine line) {
+        if (line.size() == 0) return null;
+        return find(line.hash(0), null, line);
+    }
+
+    private Command<C> find(int hash, String name, CommandLine line) {
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; table[i] != null; i = (i + 1) & mask) {
+            Command<C> command = table[i];
+            if (name != null ? command.name.equals(name) : line.is(0, command.name)) return command;
+        }
+        return null;
+    }
+
+    private void insert(Command<C> command) {
+        int mask = table.length - 1;
+        int i = spread(command.name.hashCode()) & mask;
+        while (table[i] != null) i = (i + 1) & mask;
+        table[i] = command;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,235 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable compressed set of non-negative ints, laid out like a roaring bitmap: the values are grouped by their high
+ * 16 bits, a group of up to 4096 values is a sorted char array, a denser group is a bitmap of 65536 bits.
+ * Every change returns a new set that shares the untouched groups with the old one, so readers never need a lock.
+ */
+public final class CompactBitmap {
+    public static final CompactBitmap EMPTY = new CompactBitmap(new char[0], new Object[0]);
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    // high 16 bits of the values of each group, ascending
+    private final char[] keys;
+    // the low 16 bits of each group, a char[] or a long[BITMAP_WORDS], never empty
+    private final Object[] containers;
+
+    private CompactBitmap(char[] keys, Object[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    public boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, high(value));
+        return i >= 0 && contains(containers[i], (char) value);
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    public int cardinality() {
+        int total = 0;
+        for (Object container : containers) total += cardinality(container);
+        return total;
+    }
+
+    /**
+     * the set with the value added
+     */
+    public CompactBitmap with(int value) {
+        char key = high(value);
+        char low = (char) value;
+        int i = Arrays.binarySearch(keys, key);
+        if (i >= 0) {
+            if (contains(containers[i], low)) return this;
+            Object[] copy = containers.clone();
+            copy[i] = add(containers[i], low);
+            return new CompactBitmap(keys, copy);
+        }
+        int at = -i - 1;
+        char[] newKeys = new char[keys.length + 1];
+        Object[] newContainers = new Object[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, at);
+        System.arraycopy(containers, 0, newContainers, 0, at);
+        newKeys[at] = key;
+        newContainers[at] = new char[] { low };
+        System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+        System.arraycopy(containers, at, newContainers, at + 1, keys.length - at);
+        return new CompactBitmap(newKeys, newContainers);
+    }
+
+    /**
+     * the set with the value removed
+     */
+    public CompactBitmap without(int value) {
+        int i = Arrays.binarySearch(keys, high(value));
+        if (i < 0 || !contains(containers[i], (char) value)) return this;
+        Object container = remove(containers[i], (char) value);
+        if (container != null) {
+            Object[] copy = containers.clone();
+            copy[i] = container;
+            return new CompactBitmap(keys, copy);
+        }
+        return dropGroup(i);
+    }
+
+    /**
+     * the values of this set that are not in the other one
+     */
+    public CompactBitmap andNot(CompactBitmap other) {
+        if (isEmpty() || other.isEmpty()) return this;
+        char[] newKeys = new char[keys.length];
+        Object[] newContainers = new Object[keys.length];
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) j++;
+            Object container = containers[i];
+            if (j < other.keys.length && other.keys[j] == keys[i]) container = difference(container, other.containers[j]);
+            if (container != null) {
+                newKeys[count] = keys[i];
+                newContainers[count++] = container;
+            }
+        }
+        if (count == 0) return EMPTY;
+        return new CompactBitmap(Arrays.copyOf(newKeys, count), Arrays.copyOf(newContainers, count));
+    }
+
+    /**
+     * every value of the set, in ascending order
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            int base = keys[i] << 16;
+            Object container = containers[i];
+            if (container instanceof char[]) {
+                for (char low : (char[]) container) action.accept(base | low);
+            } else {
+                long[] bits = (long[]) container;
+                for (int w = 0; w < bits.length; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        action.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    private CompactBitmap dropGroup(int i) {
+        if (keys.length == 1) return EMPTY;
+        char[] newKeys = new char[keys.length - 1];
+        Object[] newContainers = new Object[keys.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, i);
+        System.arraycopy(containers, 0, newContainers, 0, i);
+        System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+        System.arraycopy(containers, i + 1, newContainers, i, keys.length - i - 1);
+        return new CompactBitmap(newKeys, newContainers);
+    }
+
+    private static char high(int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value " + value);
+        return (char) (value >>> 16);
+    }
+
+    private static boolean contains(Object container, char low) {
+        if (container instanceof char[]) return Arrays.binarySearch((char[]) container, low) >= 0;
+        return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    private static int cardinality(Object container) {
+        if (container instanceof char[]) return ((char[]) container).length;
+        int total = 0;
+        for (long word : (long[]) container) total += Long.bitCount(word);
+        return total;
+    }
+
+    // the container with the absent value added
+    private static Object add(Object container, char low) {
+        if (container instanceof long[]) {
+            long[] bits = ((long[]) container).clone();
+            bits[low >>> 6] |= 1L << low;
+            return bits;
+        }
+        char[] values = (char[]) container;
+        if (values.length == ARRAY_MAX) {
+            long[] bits = toBits(values);
+            bits[low >>> 6] |= 1L << low;
+            return bits;
+        }
+        int at = -Arrays.binarySearch(values, low) - 1;
+        char[] grown = new char[values.length + 1];
+        System.arraycopy(values, 0, grown, 0, at);
+        grown[at] = low;
+        System.arraycopy(values, at, grown, at + 1, values.length - at);
+        return grown;
+    }
+
+    // the container with the present value removed, null if nothing is left
+    private static Object remove(Object container, char low) {
+        if (container instanceof long[]) {
+            long[] bits = ((long[]) container).clone();
+            bits[low >>> 6] &= ~(1L << low);
+            return normalize(bits);
+        }
+        char[] values = (char[]) container;
+        if (values.length == 1) return null;
+        int at = Arrays.binarySearch(values, low);
+        char[] shrunk = new char[values.length - 1];
+        System.arraycopy(values, 0, shrunk, 0, at);
+        System.arraycopy(values, at + 1, shrunk, at, values.length - at - 1);
+        return shrunk;
+    }
+
+    // the values of a that are not in b, null if nothing is left
+    private static Object difference(Object a, Object b) {
+        if (a instanceof char[]) {
+            char[] values = (char[]) a;
+            char[] kept = new char[values.length];
+            int count = 0;
+            for (char low : values) {
+                if (!contains(b, low)) kept[count++] = low;
+            }
+            if (count == values.length) return a;
+            return count == 0 ? null : Arrays.copyOf(kept, count);
+        }
+        long[] bits = ((long[]) a).clone();
+        if (b instanceof char[]) {
+            for (char low : (char[]) b) bits[low >>> 6] &= ~(1L << low);
+        } else {
+            long[] other = (long[]) b;
+            for (int w = 0; w < bits.length; w++) bits[w] &= ~other[w];
+        }
+        return normalize(bits);
+    }
+
+    // a bitmap container back as a char array once it is sparse enough, null if empty
+    private static Object normalize(long[] bits) {
+        int cardinality = cardinality(bits);
+        if (cardinality == 0) return null;
+        if (cardinality > ARRAY_MAX) return bits;
+        char[] values = new char[cardinality];
+        int count = 0;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                values[count++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    private static long[] toBits(char[] values) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (char low : values) bits[low >>> 6] |= 1L << low;
+        return bits;
+    }
+}
@@ -0,0 +1,88 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import Protocol.Frame;
+import Protocol.FrameDeflater;
+import Protocol.Opcode;
+
+/**
+ * Compression of the frames to the binary clients that ask for it. Every such session has a FrameDeflater of its own,
+ * used only by the writer of the session, the totals over all the sessions are kept here for the metrics.
+ */
+public class Compression {
+    private static volatile boolean enabled = true;
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private static volatile int threshold = 64;
+
+    private static final LongAdder frames = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder nanos = new LongAdder();
+
+    private Compression() {
+    }
+
+    static void configure(boolean on, int deflateLevel, int minimumBytes) {
+        enabled = on;
+        level = deflateLevel;
+        threshold = minimumBytes;
+    }
+
+    /**
+     * the deflater for a client that asks for compression in its hello, null if it does not or compression is off
+     */
+    static FrameDeflater accept(Frame hello) {
+        if (!enabled || !Arrays.asList(hello.getArgs()).contains(Frame.DEFLATE)) return null;
+        return new FrameDeflater(level, threshold);
+    }
+
+    // the answer to the hello of the client, naming compression if it is on
+    static Frame reply(FrameDeflater deflater) {
+        if (deflater == null) return WireFormat.helloReply();
+        return new Frame(Opcode.HELLO, new String[] { String.valueOf(Frame.VERSION), Frame.DEFLATE }, "");
+    }
+
+    /**
+     * the frame as it goes to the client of the deflater, counted in the totals
+     */
+    static ByteBuffer compress(FrameDeflater deflater, ByteBuffer frame) {
+        long in = deflater.getBytesIn();
+        long out = deflater.getBytesOut();
+        long time = deflater.getNanos();
+        ByteBuffer compressed = deflater.compress(frame);
+        frames.increment();
+        bytesIn.add(deflater.getBytesIn() - in);
+        bytesOut.add(deflater.getBytesOut() - out);
+        nanos.add(deflater.getNanos() - time);
+        return compressed;
+    }
+
+    /**
+     * the session is over, log what compression did for it
+     */
+    static void finish(FrameDeflater deflater, String client, String user) {
+        if (deflater.getFrames() > 0) Log.log(Log.Level.INFO, client, user, null, "===== compression: " + deflater.summary() + " =====", null);
+        deflater.end();
+    }
+
+    // frames sent to the clients with compression on, compressed or not
+    public static long getFrames() {
+        return frames.sum();
+    }
+
+    public static long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public static long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public static long getNanos() {
+        return nanos.sum();
+    }
+}
@@ -0,0 +1,440 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The accounts of credentials.txt, looked up through an on-disk hash index instead of being loaded at startup.
+ * The index maps the hash of a username to the offset of its line in credentials.txt and remembers how much of the
+ * file it covers, so a restart only reads the lines appended since. An Account is created the first time its username
+ * is looked up and cached from then on. New accounts are appended by a single writer thread, which writes and syncs
+ * every registration that is waiting in one go. A changed password is appended as another line of the same username,
+ * and once the writer has had nothing to append for a few seconds the file is rewritten without the lines that have
+ * been replaced, so a password hashed after a login does not stay on disk in plain text.
+ *
+ * The index file is an open addressing table, after a 32 byte header (magic, indexed length, capacity, count,
+ * replaced lines) every slot is a long hash and a long offset + 1, 0 for an empty slot. It is rebuilt from scratch when missing or when
+ * credentials.txt has shrunk; edits other than appends need the index to be deleted.
+ */
+public class CredentialStore {
+    private static final long MAGIC = 0x534b594944583031L;  // "SKYIDX01"
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // how long the writer waits for more appends before dropping the replaced lines
+    private static final long COMPACT_DELAY_MILLIS = 5000;
+
+    private static class Registration {
+        private final String line;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private long offset;
+
+        private Registration(String line) {
+            this.line = line;
+        }
+    }
+
+    private final File credentials;
+    private final File indexFile;
+    private FileChannel reader;
+    private FileChannel appender;
+    private long fileLength;
+
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    // lines of credentials.txt that a later line of the same username has replaced
+    private int replaced;
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final BlockingQueue<Registration> registrations = new LinkedBlockingQueue<>();
+
+    CredentialStore(File credentials, File indexFile) throws IOException {
+        this.credentials = credentials;
+        this.indexFile = indexFile;
+        reader = FileChannel.open(credentials.toPath(), StandardOpenOption.READ);
+        appender = FileChannel.open(credentials.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileLength = reader.size();
+        openIndex();
+    }
+
+    /**
+     * start the thread appending the registrations
+     */
+    public void start() {
+        Thread writer = new Thread(this::writeLoop, "skynett-credentials");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * the account with the given username, null if there is none
+     */
+    public Account get(String username) {
+        Account account = accounts.get(username);
+        if (account != null) return account;
+        String password = lookup(username);
+        if (password == null) return null;
+        return accounts.computeIfAbsent(username, name -> new Account(name, password));
+    }
+
+    /**
+     * create the account, the future has it once its line is on disk, null if the username is already taken.
+     * Nothing waits for the sync here, the future completes on the writer thread.
+     */
+    public CompletableFuture<Account> register(String username, String password) {
+        if (get(username) != null) return CompletableFuture.completedFuture(null);
+        Account account = new Account(username, password);
+        // two clients registering the same name at once, only one of them gets it
+        if (accounts.putIfAbsent(username, account) != null) return CompletableFuture.completedFuture(null);
+        Registration registration = new Registration(username + " " + password + "\n");
+        registrations.add(registration);
+        return registration.done.handle((saved, error) -> {
+            if (error == null) return account;
+            accounts.remove(username, account);
+            throw new CompletionException(new IOException("cannot save the account " + username, error));
+        });
+    }
+
+    /**
+     * append a new stored password of an existing account, the later line replaces the earlier one in the index.
+     * Nothing waits for it, if it is lost the old line still holds a valid password.
+     */
+    public void update(String username, String password) {
+        registrations.add(new Registration(username + " " + password + "\n"));
+    }
+
+    // the number of accounts in the index
+    public int size() {
+        indexLock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // append every waiting registration with a single write and sync, then index them, and drop the replaced lines
+    // once there has been nothing to append for a while
+    private void writeLoop() {
+        List<Registration> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Registration first = replaced() > 0 ? registrations.poll(COMPACT_DELAY_MILLIS, TimeUnit.MILLISECONDS) : registrations.take();
+                if (first == null) {
+                    compact();
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                return;
+            }
+            registrations.drainTo(batch);
+            try {
+                StringBuilder lines = new StringBuilder();
+                long offset = fileLength;
+                if (fileLength > 0 && lastByte() != '\n') {
+                    lines.append('\n');
+                    offset++;
+                }
+                for (Registration registration : batch) {
+                    registration.offset = offset;
+                    lines.append(registration.line);
+                    offset += registration.line.getBytes(StandardCharsets.UTF_8).length;
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) appender.write(bytes);
+                appender.force(false);
+
+                indexLock.writeLock().lock();
+                try {
+                    fileLength = offset;
+                    for (Registration registration : batch) {
+                        insert(hash(registration.line.substring(0, registration.line.indexOf(' '))), registration.offset);
+                    }
+                    index.putLong(8, fileLength);
+                } finally {
+                    indexLock.writeLock().unlock();
+                }
+                for (Registration registration : batch) registration.done.complete(null);
+            } catch (IOException e) {
+                for (Registration registration : batch) registration.done.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private int replaced() {
+        indexLock.readLock().lock();
+        try {
+            return replaced;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * writer thread only, rewrite credentials.txt with the current line of every username and index it again.
+     * The new file and its index are built beside the old ones, which lookups keep using meanwhile, and only
+     * swapped in under the lock. The new file is synced before it takes the place of the old one, a crash in
+     * between leaves the old one.
+     */
+    private void compact() {
+        File compacted = new File(credentials.getPath() + ".tmp");
+        File compactedIndex = new File(indexFile.getPath() + ".tmp");
+        int lines = 0;
+        long length = 0;
+        try {
+            // the writer is the only one changing the index, reading it needs no lock here, and as every username
+            // is left once the same capacity holds them
+            MappedByteBuffer table = create(compactedIndex, capacity);
+            try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int slot = 0; slot < capacity; slot++) {
+                    int position = HEADER_SIZE + slot * SLOT_SIZE;
+                    long offset = index.getLong(position + 8);
+                    if (offset == 0) continue;
+                    String[] line = readLine(offset - 1);
+                    if (line == null) continue;
+                    long hash = index.getLong(position);
+                    int target = slotOf(hash, capacity);
+                    while (table.getLong(HEADER_SIZE + target * SLOT_SIZE + 8) != 0) target = (target + 1) % capacity;
+                    table.putLong(HEADER_SIZE + target * SLOT_SIZE, hash);
+                    table.putLong(HEADER_SIZE + target * SLOT_SIZE + 8, length + 1);
+                    ByteBuffer bytes = ByteBuffer.wrap((line[0] + " " + line[1] + "\n").getBytes(StandardCharsets.UTF_8));
+                    length += bytes.remaining();
+                    while (bytes.hasRemaining()) out.write(bytes);
+                    lines++;
+                }
+                out.force(true);
+            }
+            table.putLong(8, length);
+            table.putInt(20, lines);
+            table.force();
+
+            indexLock.writeLock().lock();
+            try {
+                // the file first, until the index follows the old one covers more than the file and is rebuilt at start
+                Files.move(compacted.toPath(), credentials.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                reader.close();
+                appender.close();
+                reader = FileChannel.open(credentials.toPath(), StandardOpenOption.READ);
+                appender = FileChannel.open(credentials.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                fileLength = length;
+                index = table;
+                count = lines;
+                replaced = 0;
+                Files.move(compactedIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            Log.info("===== " + credentials + " rewritten with the " + lines + " current lines =====");
+        } catch (IOException e) {
+            // tried again after the next change
+            Log.error("===== cannot rewrite " + credentials + ", " + e.getMessage() + " =====", null);
+            indexLock.writeLock().lock();
+            try {
+                replaced = 0;
+                index.putInt(24, 0);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private byte lastByte() throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        reader.read(last, fileLength - 1);
+        return last.get(0);
+    }
+
+    // the password of the username, found through the index
+    private String lookup(String username) {
+        long hash = hash(username);
+        indexLock.readLock().lock();
+        try {
+            for (int slot = slotOf(hash, capacity); ; slot = (slot + 1) % capacity) {
+                long position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+                long offset = index.getLong((int) position + 8);
+                if (offset == 0) return null;
+                if (index.getLong((int) position) != hash) continue;
+                String[] line = readLine(offset - 1);
+                if (line != null && line[0].equals(username)) return line[1];
+            }
+        } catch (IOException e) {
+            Log.error("===== cannot read the credentials of " + username + ", " + e.getMessage() + " =====", null);
+            return null;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // the username and password on the line starting at the offset
+    private String[] readLine(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        while (true) {
+            int read = reader.read(buffer, offset + buffer.position());
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') return parse(new String(buffer.array(), 0, i, StandardCharsets.UTF_8));
+            }
+            if (read <= 0) return parse(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+            if (!buffer.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+
+    private static String[] parse(String line) {
+        String[] fields = line.trim().split("\\s+");
+        return fields.length < 2 ? null : fields;
+    }
+
+    // write lock held, add the line at the offset, replacing an earlier line of the same username
+    private void insert(long hash, long offset) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L) resize(capacity * 2);
+        String username = readLine(offset)[0];
+        for (int slot = slotOf(hash, capacity); ; slot = (slot + 1) % capacity) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long existing = index.getLong(position + 8);
+            if (existing == 0) {
+                index.putLong(position, hash);
+                index.putLong(position + 8, offset + 1);
+                index.putInt(20, ++count);
+                return;
+            }
+            if (index.getLong(position) == hash) {
+                String[] line = readLine(existing - 1);
+                if (line != null && line[0].equals(username)) {
+                    index.putLong(position + 8, offset + 1);
+                    index.putInt(24, ++replaced);
+                    return;
+                }
+            }
+        }
+    }
+
+    // open the index, building it if there is none, and catch up with the lines appended since it was last written
+    private void openIndex() throws IOException {
+        long indexed = 0;
+        if (indexFile.exists() && indexFile.length() >= HEADER_SIZE) {
+            index = map(indexFile, indexFile.length());
+            capacity = index.getInt(16);
+            count = index.getInt(20);
+            replaced = index.getInt(24);
+            indexed = index.getLong(8);
+            boolean valid = index.getLong(0) == MAGIC && indexFile.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+            if (!valid || indexed > fileLength) index = null;
+        }
+        if (index == null) {
+            Log.info("===== building the credential index =====");
+            index = create(indexFile, INITIAL_CAPACITY);
+            capacity = INITIAL_CAPACITY;
+            count = 0;
+            replaced = 0;
+            indexed = 0;
+        }
+
+        // the lines appended since
+        int lines = 0;
+        try (FileInputStream file = new FileInputStream(credentials)) {
+            file.getChannel().position(indexed);
+            InputStream in = new BufferedInputStream(file);
+            long lineStart = indexed;
+            long position = indexed;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '\n') continue;
+                if (indexLine(lineStart)) lines++;
+                lineStart = position;
+                index.putLong(8, lineStart);
+            }
+            // a last line without its newline is indexed too, but read again at the next start as it may still grow
+            if (position > lineStart && indexLine(lineStart)) lines++;
+        }
+        if (lines > 0) Log.info("===== " + lines + " new lines indexed from " + credentials + " =====");
+    }
+
+    private boolean indexLine(long lineStart) throws IOException {
+        String[] line = readLine(lineStart);
+        if (line == null) return false;
+        insert(hash(line[0]), lineStart);
+        return true;
+    }
+
+    // write lock held, move every entry to a table of the new capacity
+    private void resize(int newCapacity) throws IOException {
+        File resized = new File(indexFile.getPath() + ".tmp");
+        MappedByteBuffer table = create(resized, newCapacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = index.getLong(position + 8);
+            if (offset == 0) continue;
+            long hash = index.getLong(position);
+            int target = slotOf(hash, newCapacity);
+            while (table.getLong(HEADER_SIZE + target * SLOT_SIZE + 8) != 0) target = (target + 1) % newCapacity;
+            table.putLong(HEADER_SIZE + target * SLOT_SIZE, hash);
+            table.putLong(HEADER_SIZE + target * SLOT_SIZE + 8, offset);
+        }
+        table.putLong(8, index.getLong(8));
+        table.putInt(20, count);
+        table.putInt(24, replaced);
+        Files.move(resized.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = table;
+        capacity = newCapacity;
+    }
+
+    private static MappedByteBuffer create(File file, int capacity) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        MappedByteBuffer table = map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        table.putLong(0, MAGIC);
+        table.putInt(16, capacity);
+        return table;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int slotOf(long hash, int capacity) {
+        return (int) ((hash >>> 1) % capacity);
+    }
+
+    // 64 bit FNV-1a of the UTF-8 bytes, with a final mix
+    private static long hash(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,111 @@
+package Server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Delivers one message to many sessions off the thread of the sender.
+ * The recipients are spread over a fixed set of lanes by account id. Every lane is a single thread delivering its
+ * batches in submission order, so each recipient gets the broadcasts in the order they were published.
+ */
+public class FanOut {
+    private final ExecutorService[] lanes;
+    private final int batchSize;
+    private final long reportMillis;
+    private final AtomicLong nextReport;
+
+    // time from publishing to the last recipient having the message queued
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    // the same since the start, for the metrics
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final LongAdder totalPublished = new LongAdder();
+
+    public FanOut(int laneCount, int batchSize, long reportMillis) {
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "skynett-fanout-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.batchSize = batchSize;
+        this.reportMillis = reportMillis;
+        nextReport = new AtomicLong(System.currentTimeMillis() + reportMillis);
+    }
+
+    /**
+     * hand the id of every recipient to deliver on the fan-out lanes, returns as soon as the batches are submitted
+     */
+    public void publish(CompactBitmap targets, IntConsumer deliver) {
+        long start = System.nanoTime();
+        int laneCount = lanes.length;
+
+        // group the recipients by lane, an id always goes to the same lane
+        int[] sizes = new int[laneCount];
+        targets.forEach(id -> sizes[id % laneCount]++);
+        int[][] grouped = new int[laneCount][];
+        int total = 0;
+        int batches = 0;
+        for (int lane = 0; lane < laneCount; lane++) {
+            grouped[lane] = new int[sizes[lane]];
+            total += sizes[lane];
+            batches += (sizes[lane] + batchSize - 1) / batchSize;
+            sizes[lane] = 0;
+        }
+        if (total == 0) return;
+        targets.forEach(id -> grouped[id % laneCount][sizes[id % laneCount]++] = id);
+
+        AtomicInteger pending = new AtomicInteger(batches);
+        published.increment();
+        totalPublished.increment();
+        recipients.add(total);
+        for (int lane = 0; lane < laneCount; lane++) {
+            int[] group = grouped[lane];
+            for (int from = 0; from < group.length; from += batchSize) {
+                int begin = from;
+                int end = Math.min(group.length, from + batchSize);
+                lanes[lane].execute(() -> {
+                    for (int i = begin; i < end; i++) {
+                        try {
+                            deliver.accept(group[i]);
+                        } catch (RuntimeException e) {
+                            Log.error("===== delivering a broadcast failed =====", e);
+                        }
+                    }
+                    if (pending.decrementAndGet() == 0) finished(start);
+                });
+            }
+        }
+    }
+
+    // broadcasts published since the start
+    public long getPublished() {
+        return totalPublished.sum();
+    }
+
+    // time from publishing to the last recipient having the message queued, since the start
+    public LatencyHistogram getLatency() {
+        return totalLatency;
+    }
+
+    // the last batch of a broadcast is done, report the latencies every so often
+    private void finished(long start) {
+        long elapsed = System.nanoTime() - start;
+        latency.record(elapsed);
+        totalLatency.record(elapsed);
+        long now = System.currentTimeMillis();
+        long next = nextReport.get();
+        if (now < next || !nextReport.compareAndSet(next, now + reportMillis)) return;
+        Log.info("===== fan-out: " + published.sumThenReset() + " broadcasts to " + recipients.sumThenReset()
+                + " recipients, " + latency.summary() + " =====");
+        latency.reset();
+    }
+}
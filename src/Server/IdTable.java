@@ -0,0 +1,55 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Values indexed by the dense account ids. Reads take no lock, writes are serialized and grow the table as needed.
+ * The ids that currently have a value are kept as a CompactBitmap snapshot.
+ */
+public class IdTable<T> {
+    private volatile AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(64);
+    private volatile CompactBitmap ids = CompactBitmap.EMPTY;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public T get(int id) {
+        AtomicReferenceArray<T> current = slots;
+        return id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * the ids that have a value, as of the last write
+     */
+    public CompactBitmap ids() {
+        return ids;
+    }
+
+    public void set(int id, T value) {
+        writeLock.lock();
+        try {
+            AtomicReferenceArray<T> current = slots;
+            if (id >= current.length()) {
+                AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+                for (int i = 0; i < current.length(); i++) grown.set(i, current.get(i));
+                slots = grown;
+                current = grown;
+            }
+            current.set(id, value);
+            ids = value == null ? ids.without(id) : ids.with(id);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * clear the id only if it still holds the given value
+     */
+    public void remove(int id, T value) {
+        writeLock.lock();
+        try {
+            if (get(id) == value) set(id, null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
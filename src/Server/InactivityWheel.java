@@ -0,0 +1,128 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel tracking the inactivity deadline of every session on a single thread.
+ * Activity only records a timestamp, the wheel re-files a session under its new deadline when it comes across it
+ * and hands the sessions found expired on each tick over in one batch.
+ */
+public class InactivityWheel extends Thread {
+
+    /**
+     * the inactivity tracking of one session
+     */
+    public static class Entry {
+        private final long timeoutMillis;
+        private final Runnable onExpire;
+        private volatile long lastActive;
+        private volatile boolean cancelled = false;
+
+        private Entry(long timeoutMillis, Runnable onExpire, long now) {
+            this.timeoutMillis = timeoutMillis;
+            this.onExpire = onExpire;
+            this.lastActive = now;
+        }
+
+        private long deadline() {
+            return lastActive + timeoutMillis;
+        }
+    }
+
+    private final long tickMillis;
+    private final Queue<Entry>[] buckets;
+    // coarse clock, advanced once per tick, read by every touch
+    private volatile long now;
+    private long lastTick;
+
+    InactivityWheel(long tickMillis, int wheelSize) {
+        super("skynett-inactivity");
+        setDaemon(true);
+        this.tickMillis = tickMillis;
+        buckets = newBuckets(wheelSize);
+        for (int i = 0; i < wheelSize; i++) buckets[i] = new ConcurrentLinkedQueue<>();
+        now = System.currentTimeMillis();
+        lastTick = now / tickMillis;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<Entry>[] newBuckets(int size) {
+        return (Queue<Entry>[]) new Queue[size];
+    }
+
+    /**
+     * start tracking a session, onExpire runs once the session has been inactive for the given time
+     */
+    public Entry register(long timeoutMillis, Runnable onExpire) {
+        Entry entry = new Entry(timeoutMillis, onExpire, now);
+        file(entry);
+        return entry;
+    }
+
+    /**
+     * record activity of the session, its deadline moves on without touching the wheel
+     */
+    public void touch(Entry entry) {
+        entry.lastActive = now;
+    }
+
+    /**
+     * stop tracking the session, it is dropped from the wheel the next time it comes up
+     */
+    public void cancel(Entry entry) {
+        entry.cancelled = true;
+    }
+
+    // time in milliseconds as of the last tick
+    public long now() {
+        return now;
+    }
+
+    private void file(Entry entry) {
+        // round up so that a session never expires before its deadline
+        long tick = (entry.deadline() + tickMillis - 1) / tickMillis;
+        buckets[(int) (tick % buckets.length)].add(entry);
+    }
+
+    @Override
+    public void run() {
+        List<Entry> expired = new ArrayList<>();
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            now = System.currentTimeMillis();
+            long currentTick = now / tickMillis;
+
+            // catch up on every tick since the last one, in case the thread was held up
+            for (long tick = lastTick + 1; tick <= currentTick; tick++) {
+                Queue<Entry> bucket = buckets[(int) (tick % buckets.length)];
+                // only the entries already in the bucket, re-filed ones may land in this same bucket
+                for (int n = bucket.size(); n > 0; n--) {
+                    Entry entry = bucket.poll();
+                    if (entry == null) break;
+                    if (entry.cancelled) continue;
+                    if (entry.deadline() <= now) expired.add(entry);
+                    else file(entry);
+                }
+                if (tick - lastTick >= buckets.length) break;
+            }
+            lastTick = currentTick;
+
+            if (!expired.isEmpty()) {
+                Entry[] batch = expired.toArray(new Entry[0]);
+                expired.clear();
+                ServerThreads.offload("inactivity-sweep", () -> {
+                    for (Entry entry : batch) {
+                        if (!entry.cancelled) entry.onExpire.run();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package Server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram that any number of threads can record into without locking, every bucket is a striped counter so
+ * that threads recording the same latency do not contend on one cache line.
+ * Buckets are log-linear, every power of two is split into 8 buckets, so a reported percentile is at most 12.5% above
+ * the true value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final LongAdder[] counts = new LongAdder[64 * SUB_BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        counts[index(Math.max(0, nanos))].increment();
+    }
+
+    public long count() {
+        long total = 0;
+        for (LongAdder count : counts) total += count.sum();
+        return total;
+    }
+
+    public void reset() {
+        for (LongAdder count : counts) count.reset();
+    }
+
+    // the value below which the given fraction of the samples fall, in nanoseconds
+    public long percentile(double fraction) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    // p50/p90/p99/max in milliseconds
+    public String summary() {
+        return String.format("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                percentile(0.50) / 1e6, percentile(0.90) / 1e6, percentile(0.99) / 1e6, percentile(1.0) / 1e6);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that falls into the bucket
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
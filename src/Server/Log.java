@@ -0,0 +1,321 @@
+package Server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server log. A caller only claims a slot of a pre-allocated ring and fills in the fields of its line, the
+ * formatting and writing happen on a background thread, so no thread serving a client ever waits for the output.
+ * The same message at the same level more often than the burst limit in one second is suppressed, the next line
+ * that gets through tells how many were. When the ring is full the line is dropped and counted instead of holding the caller back.
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int RING_SIZE = 1 << 13;
+    private static final int MASK = RING_SIZE - 1;
+    // how long the writer sleeps when there is nothing to write, unless a line wakes it up
+    private static final long IDLE_NANOS = 1_000_000_000;
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    // distinct messages followed for the burst limit, beyond that they are forgotten and followed anew
+    private static final int MAX_LIMITED = 4096;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    // one line of the ring, the slots are filled again and again
+    private static class Entry {
+        // the sequence number of the line once it is complete
+        private volatile long sequence = -1;
+        private Level level;
+        private long time;
+        private String client;
+        private String user;
+        private String command;
+        private String message;
+        private Throwable error;
+        private long suppressed;
+    }
+
+    private static final Entry[] ring = new Entry[RING_SIZE];
+    private static final AtomicLong claimed = new AtomicLong();
+    // the lines before this one have been written, only the writer moves it on
+    private static volatile long written = 0;
+    private static final LongAdder dropped = new LongAdder();
+    // per level and message, the second it was last seen in and how often, packed as second << COUNT_BITS | count
+    private static final List<ConcurrentHashMap<String, AtomicLong>> limits = new ArrayList<>();
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile int burst = 50;
+    private static final AtomicReference<Appender> nextAppender = new AtomicReference<>();
+    private static volatile boolean closing = false;
+    // set by the writer before it parks, a caller that completes a line wakes it up
+    private static volatile boolean idle = false;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) ring[i] = new Entry();
+        for (int i = 0; i < Level.values().length; i++) limits.add(new ConcurrentHashMap<>());
+        writer = new Thread(Log::drain, "skynett-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // write out whatever is in the ring
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * log from this level up, at most burstPerSecond times a second the same message, to the file if there is one,
+     * rotated at maxBytes and keeping the given number of older files, otherwise to standard output
+     */
+    public static void configure(Level level, int burstPerSecond, File file, long maxBytes, int files) throws IOException {
+        threshold = level;
+        burst = (int) Math.min(burstPerSecond, COUNT_MASK);
+        if (file != null) {
+            nextAppender.set(new Appender(file, maxBytes, files));
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, null, null, null, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, null, null, null, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, null, null, null, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, null, null, null, message, error);
+    }
+
+    /**
+     * log a message about one client, the fields that do not apply are null
+     */
+    public static void log(Level level, String client, String user, String command, String message, Throwable error) {
+        if (!isEnabled(level)) return;
+        long suppressed = admit(level, message);
+        if (suppressed < 0) return;
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) sequence & MASK];
+        entry.level = level;
+        entry.time = System.currentTimeMillis();
+        entry.client = client;
+        entry.user = user;
+        entry.command = command;
+        entry.message = message;
+        entry.error = error;
+        entry.suppressed = suppressed;
+        entry.sequence = sequence;
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // -1 if the message has been logged too often this second, otherwise how many times it was suppressed before
+    private static long admit(Level level, String message) {
+        ConcurrentHashMap<String, AtomicLong> messages = limits.get(level.ordinal());
+        AtomicLong limit = messages.get(message);
+        if (limit == null) {
+            if (messages.size() >= MAX_LIMITED) messages.clear();
+            limit = messages.computeIfAbsent(message, key -> new AtomicLong());
+        }
+        long second = CoarseClock.millis() / 1000;
+        while (true) {
+            long state = limit.get();
+            long count = state & COUNT_MASK;
+            if (state >>> COUNT_BITS == second) {
+                if (count >= burst) {
+                    // losing the race only loses a count
+                    if (count < COUNT_MASK) limit.compareAndSet(state, state + 1);
+                    return -1;
+                }
+                if (limit.compareAndSet(state, state + 1)) return 0;
+            } else if (limit.compareAndSet(state, second << COUNT_BITS | 1)) {
+                return Math.max(0, count - burst);
+            }
+        }
+    }
+
+    // the writer thread, it formats and writes the lines in the order they were claimed
+    private static void drain() {
+        Appender appender = new Appender();
+        StringBuilder line = new StringBuilder(256);
+        boolean unflushed = false;
+        while (true) {
+            Appender next = nextAppender.getAndSet(null);
+            if (next != null) {
+                appender.close();
+                appender = next;
+            }
+
+            long sequence = written;
+            Entry entry = ring[(int) sequence & MASK];
+            if (entry.sequence != sequence) {
+                long lost = dropped.sumThenReset();
+                if (lost > 0) {
+                    line.setLength(0);
+                    appender.write(line.append(TIME.format(Instant.now())).append(" WARN  ===== ").append(lost)
+                            .append(" log lines dropped, the log could not keep up =====\n"));
+                    unflushed = true;
+                }
+                if (unflushed) {
+                    appender.flush();
+                    unflushed = false;
+                }
+                if (closing && claimed.get() == sequence) {
+                    appender.close();
+                    return;
+                }
+                // a line completed after the flag is set unparks the writer, one completed before is seen here
+                idle = true;
+                if (entry.sequence != sequence) LockSupport.parkNanos(IDLE_NANOS);
+                idle = false;
+                continue;
+            }
+
+            format(entry, line);
+            entry.client = null;
+            entry.user = null;
+            entry.command = null;
+            entry.message = null;
+            entry.error = null;
+            written = sequence + 1;
+            appender.write(line);
+            unflushed = true;
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        line.setLength(0);
+        line.append(TIME.format(Instant.ofEpochMilli(entry.time))).append(' ').append(entry.level);
+        for (int i = entry.level.name().length(); i < 6; i++) line.append(' ');
+        line.append(entry.message);
+        if (entry.client != null) line.append(" client=").append(entry.client);
+        if (entry.user != null) line.append(" user=").append(entry.user);
+        if (entry.command != null) line.append(" command=").append(entry.command);
+        if (entry.suppressed > 0) line.append(" (").append(entry.suppressed).append(" more suppressed)");
+        line.append('\n');
+        if (entry.error != null) {
+            StringWriter trace = new StringWriter();
+            entry.error.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    // where the lines go, standard output or a file that is rotated once it reaches its size
+    private static class Appender {
+        private final File file;
+        private final long maxBytes;
+        private final int files;
+        private Writer out;
+        private long size;
+
+        // standard output
+        Appender() {
+            file = null;
+            maxBytes = 0;
+            files = 0;
+            out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+
+        Appender(File file, long maxBytes, int files) throws IOException {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.files = files;
+            open();
+        }
+
+        void write(CharSequence line) {
+            if (out == null) return;
+            try {
+                if (file != null && size > 0 && size + line.length() > maxBytes) rotate();
+                out.append(line);
+                size += line.length();
+            } catch (IOException e) {
+                System.out.println("===== cannot write the log, " + e.getMessage() + " =====");
+            }
+        }
+
+        void flush() {
+            try {
+                if (out != null) out.flush();
+            } catch (IOException e) {
+                System.out.println("===== cannot write the log, " + e.getMessage() + " =====");
+            }
+        }
+
+        void close() {
+            flush();
+            // standard output stays open
+            if (file == null) return;
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                // nothing more to write anyway
+            }
+            out = null;
+        }
+
+        // log -> log.1 -> log.2 ..., the oldest beyond the number of files kept is deleted
+        private void rotate() throws IOException {
+            out.close();
+            out = null;
+            new File(file.getPath() + "." + files).delete();
+            for (int i = files - 1; i >= 1; i--) new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            if (files > 0) file.renameTo(new File(file.getPath() + ".1"));
+            else file.delete();
+            open();
+        }
+
+        private void open() throws IOException {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            size = file.length();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package Server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Failed logins by source address, so that an address guessing passwords is held off whichever accounts it tries.
+ * Each address has its count and the start of its window packed in one long, updated by compare and set. Once the
+ * count reaches the limit the address is blocked for a whole window from that failure on.
+ */
+public class LoginAttempts {
+    private static final int COUNT_BITS = 16;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int MIN_SWEEP = 1024;
+
+    private final int limit;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    // the number of addresses at which the expired ones are dropped
+    private volatile int sweepAt = MIN_SWEEP;
+
+    LoginAttempts(int limit, long windowMillis) {
+        this.limit = limit;
+        this.windowMillis = windowMillis;
+    }
+
+    // whether the address has failed too often lately
+    public boolean isBlocked(String address) {
+        AtomicLong entry = failures.get(address);
+        if (entry == null) return false;
+        long packed = entry.get();
+        return count(packed) >= limit && CoarseClock.millis() - start(packed) < windowMillis;
+    }
+
+    /**
+     * count a failed login from the address
+     * @return true if the address is blocked from now on
+     */
+    public boolean fail(String address) {
+        long now = CoarseClock.millis();
+        AtomicLong entry = failures.get(address);
+        if (entry == null) {
+            if (failures.size() >= sweepAt) sweep(now);
+            entry = failures.computeIfAbsent(address, key -> new AtomicLong(now << COUNT_BITS));
+        }
+        while (true) {
+            long packed = entry.get();
+            long next;
+            if (now - start(packed) >= windowMillis) next = now << COUNT_BITS | 1;
+            else if (count(packed) + 1 >= limit) next = now << COUNT_BITS | Math.min(count(packed) + 1, COUNT_MASK);
+            else next = packed + 1;
+            if (entry.compareAndSet(packed, next)) return count(next) >= limit;
+        }
+    }
+
+    // the number of addresses with failures on record
+    public int size() {
+        return failures.size();
+    }
+
+    private void sweep(long now) {
+        failures.values().removeIf(entry -> now - start(entry.get()) >= windowMillis);
+        sweepAt = Math.max(MIN_SWEEP, failures.size() * 2);
+    }
+
+    private static long count(long packed) {
+        return packed & COUNT_MASK;
+    }
+
+    private static long start(long packed) {
+        return packed >>> COUNT_BITS;
+    }
+}
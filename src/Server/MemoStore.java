@@ -0,0 +1,524 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Offline memos kept in an append-only log of memory mapped segment files, so that they survive a restart.
+ * The heap only holds the position of every pending memo, per recipient in the order the memos were sent, and how far
+ * each recipient has been delivered. The log has two kinds of records:
+ *
+ *   MEMO     seq, time, recipient, sender, content     seq numbers the memos of one recipient
+ *   CURSOR   seq, recipient                            every memo of the recipient up to seq has been delivered
+ *
+ * each framed as an int length, an int CRC32 and the body, a zero length ends the data of a segment.
+ * A sync thread makes the appends durable, forcing every segment written since its last round at once so that
+ * concurrent writers share one fsync, and completes the futures of the memos stored that it has made durable. A compaction thread copies the memos still pending out of the segments that are
+ * mostly delivered, then deletes those segments.
+ */
+public class MemoStore {
+    private static final byte MEMO = 1;
+    private static final byte CURSOR = 2;
+    private static final int FRAME_SIZE = 8;
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int used = 0;
+        // bytes of the memos in this segment that are still pending
+        private long liveBytes = 0;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    // the pending memos of one recipient, sorted by seq
+    private static class Recipient {
+        private long[] seqs = new long[4];
+        private long[] positions = new long[4];
+        private int size = 0;
+        private long cursor = -1;       // delivered up to and including this seq
+        private long nextSeq = 0;
+        private int cursorSegment = -1; // the segment holding the latest cursor record
+        // number of pending memos by sender
+        private final TreeMap<String, Integer> senders = new TreeMap<>();
+
+        // add the memo, or move it if it is already known
+        private void put(long seq, long position) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            if (i >= 0) {
+                positions[i] = position;
+                return;
+            }
+            i = -i - 1;
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            System.arraycopy(seqs, i, seqs, i + 1, size - i);
+            System.arraycopy(positions, i, positions, i + 1, size - i);
+            seqs[i] = seq;
+            positions[i] = position;
+            size++;
+        }
+
+        private void removeFirst(int count) {
+            System.arraycopy(seqs, count, seqs, 0, size - count);
+            System.arraycopy(positions, count, positions, 0, size - count);
+            size -= count;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private final Map<String, Recipient> recipients = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition unsynced = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final List<Segment> dirty = new ArrayList<>();
+    // appends so far, and how many of them are durable
+    private long appended = 0;
+    private long durable = 0;
+    // the futures of the stored memos that are not durable yet, in ticket order
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    private static class Waiter {
+        private final long ticket;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private Waiter(long ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    /**
+     * open the log in the directory, replaying whatever an earlier run left there
+     */
+    public MemoStore(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("cannot create " + directory);
+        recover();
+    }
+
+    /**
+     * start the sync thread, and the compaction thread running every given number of seconds
+     */
+    public void start(int compactSeconds) {
+        Thread sync = new Thread(this::syncLoop, "skynett-memo-sync");
+        sync.setDaemon(true);
+        sync.start();
+        Thread compactor = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.SECONDS.sleep(compactSeconds);
+                    compact();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error("===== memo compaction failed: " + e.getMessage() + " =====", null);
+                }
+            }
+        }, "skynett-memo-compact");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * append a memo to the log, returns the ticket to wait for with sync
+     */
+    public long append(Message m) throws IOException {
+        lock.lock();
+        try {
+            Recipient r = recipients.computeIfAbsent(m.getReceiver(), k -> new Recipient());
+            long seq = r.nextSeq++;
+            long time = m.getTimeStamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            byte[] record = record(MEMO, seq, time, m.getReceiver(), m.getSender(), m.getContent());
+            long position = write(record);
+            r.put(seq, position);
+            r.senders.merge(m.getSender(), 1, Integer::sum);
+            active.liveBytes += record.length;
+            return ticket();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * append a memo to the log without waiting for the disk, the future completes once the memo is durable
+     */
+    public CompletableFuture<Void> store(Message m) {
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(append(m));
+            waiters.add(waiter);
+            return waiter.durable;
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait until the append with the given ticket is on disk
+     */
+    public void sync(long ticket) throws InterruptedException {
+        lock.lock();
+        try {
+            while (durable < ticket) synced.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the first pending memos of the recipient, oldest first, at most limit of them
+     */
+    public List<Message> pending(String recipient, int limit) {
+        long[] positions;
+        Segment[] in;
+        lock.lock();
+        try {
+            Recipient r = recipients.get(recipient);
+            if (r == null || r.size == 0) return new ArrayList<>();
+            positions = Arrays.copyOf(r.positions, Math.min(limit, r.size));
+            in = new Segment[positions.length];
+            for (int i = 0; i < positions.length; i++) in[i] = segments.get(segmentOf(positions[i]));
+        } finally {
+            lock.unlock();
+        }
+        // a compacted segment stays mapped as long as it is referenced here
+        List<Message> memos = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            ByteBuffer body = body(in[i], offsetOf(positions[i]));
+            body.get();
+            body.getLong();
+            long time = body.getLong();
+            String receiver = string(body);
+            String sender = string(body);
+            String content = string(body);
+            memos.add(new Message(sender, receiver, content,
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())));
+        }
+        return memos;
+    }
+
+    /**
+     * the first count pending memos of the recipient have been delivered
+     */
+    public void delivered(String recipient, int count) throws IOException {
+        lock.lock();
+        try {
+            Recipient r = recipients.get(recipient);
+            if (r == null || count <= 0) return;
+            count = Math.min(count, r.size);
+            for (int i = 0; i < count; i++) {
+                Segment segment = segments.get(segmentOf(r.positions[i]));
+                segment.liveBytes -= FRAME_SIZE + segment.buffer.getInt(offsetOf(r.positions[i]));
+                r.senders.computeIfPresent(sender(segment, offsetOf(r.positions[i])), (sender, n) -> n > 1 ? n - 1 : null);
+            }
+            r.cursor = r.seqs[count - 1];
+            r.removeFirst(count);
+            writeCursor(recipient, r);
+            ticket();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * how many memos are pending for the recipient
+     */
+    public int pendingCount(String recipient) {
+        lock.lock();
+        try {
+            Recipient r = recipients.get(recipient);
+            return r == null ? 0 : r.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * how many memos are pending for the recipient from each sender, by sender name
+     */
+    public Map<String, Integer> unreadBySender(String recipient) {
+        lock.lock();
+        try {
+            Recipient r = recipients.get(recipient);
+            return r == null ? new TreeMap<>() : new TreeMap<>(r.senders);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long pendingCount() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (Recipient r : recipients.values()) total += r.size;
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock held, put the record at the end of the log, returns its position
+    private long write(byte[] record) throws IOException {
+        if (active == null || active.used + record.length + 4 > active.buffer.capacity()) {
+            // leave room for the zero length that ends the segment
+            active = newSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1, Math.max(segmentSize, record.length + 4));
+        }
+        ByteBuffer view = active.buffer.duplicate();
+        view.position(active.used);
+        view.put(record);
+        long position = ((long) active.id << 32) | active.used;
+        active.used += record.length;
+        if (!dirty.contains(active)) dirty.add(active);
+        return position;
+    }
+
+    // lock held, the ticket for everything written so far, handed to the sync thread
+    private long ticket() {
+        appended++;
+        unsynced.signal();
+        return appended;
+    }
+
+    private void writeCursor(String name, Recipient r) throws IOException {
+        long position = write(record(CURSOR, r.cursor, 0, name, null, null));
+        r.cursorSegment = segmentOf(position);
+    }
+
+    private Segment newSegment(int id, int size) throws IOException {
+        Segment segment = map(id, size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment map(int id, int size) throws IOException {
+        File file = new File(directory, String.format("memo-%08d.log", id));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    // make the appends durable, as many of them at a time as have piled up during the last force
+    private void syncLoop() {
+        while (true) {
+            Segment[] toForce;
+            long target;
+            lock.lock();
+            try {
+                while (durable == appended) unsynced.awaitUninterruptibly();
+                target = appended;
+                toForce = dirty.toArray(new Segment[0]);
+                dirty.clear();
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : toForce) segment.buffer.force();
+            List<Waiter> done = new ArrayList<>();
+            lock.lock();
+            try {
+                durable = target;
+                synced.signalAll();
+                while (!waiters.isEmpty() && waiters.peek().ticket <= target) done.add(waiters.poll());
+            } finally {
+                lock.unlock();
+            }
+            // outside the lock, whatever runs on completion may store again
+            for (Waiter waiter : done) waiter.durable.complete(null);
+        }
+    }
+
+    /**
+     * copy what is still needed out of every full segment that is at least half delivered, then delete it
+     */
+    void compact() throws IOException, InterruptedException {
+        List<Segment> candidates = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes * 2 <= segment.used) candidates.add(segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Segment segment : candidates) {
+            long ticket;
+            int moved = 0;
+            lock.lock();
+            try {
+                for (Map.Entry<String, Recipient> entry : recipients.entrySet()) {
+                    Recipient r = entry.getValue();
+                    for (int i = 0; i < r.size; i++) {
+                        if (segmentOf(r.positions[i]) != segment.id) continue;
+                        // the record is self contained, its copy is the same bytes
+                        int offset = offsetOf(r.positions[i]);
+                        byte[] record = new byte[FRAME_SIZE + segment.buffer.getInt(offset)];
+                        segment.buffer.get(offset, record);
+                        r.positions[i] = write(record);
+                        active.liveBytes += record.length;
+                        moved++;
+                    }
+                    // the latest cursor of the recipient must outlive the segment
+                    if (r.cursorSegment == segment.id) writeCursor(entry.getKey(), r);
+                }
+                ticket = ticket();
+            } finally {
+                lock.unlock();
+            }
+            sync(ticket);
+            lock.lock();
+            try {
+                segments.remove(segment.id);
+            } finally {
+                lock.unlock();
+            }
+            if (!segment.file.delete()) Log.warn("===== cannot delete " + segment.file + " =====");
+            Log.info("===== memo segment " + segment.id + " compacted, " + moved + " pending memos moved =====");
+        }
+    }
+
+    // rebuild the index from the segments left by an earlier run
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.matches("memo-\\d+\\.log"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName().substring(5, file.getName().length() - 4));
+                Segment segment = map(id, (int) file.length());
+                segments.put(id, segment);
+                replay(segment);
+            }
+        }
+        // memos whose cursor came later in the log have been delivered
+        for (Recipient r : recipients.values()) {
+            int delivered = 0;
+            while (delivered < r.size && r.seqs[delivered] <= r.cursor) delivered++;
+            r.removeFirst(delivered);
+            for (int i = 0; i < r.size; i++) {
+                Segment segment = segments.get(segmentOf(r.positions[i]));
+                segment.liveBytes += FRAME_SIZE + segment.buffer.getInt(offsetOf(r.positions[i]));
+                r.senders.merge(sender(segment, offsetOf(r.positions[i])), 1, Integer::sum);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            // clear whatever a crash left after the last whole record, new records go there
+            for (int offset = active.used; offset < active.buffer.capacity(); offset++) active.buffer.put(offset, (byte) 0);
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + FRAME_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + FRAME_SIZE + length > buffer.capacity()) break;
+            ByteBuffer body = buffer.duplicate().position(offset + FRAME_SIZE).limit(offset + FRAME_SIZE + length).slice();
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            // a record torn by a crash ends the log
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+
+            byte type = body.get();
+            long seq = body.getLong();
+            if (type == MEMO) body.getLong();
+            Recipient r = recipients.computeIfAbsent(string(body), k -> new Recipient());
+            r.nextSeq = Math.max(r.nextSeq, seq + 1);
+            if (type == MEMO) {
+                r.put(seq, ((long) segment.id << 32) | offset);
+            } else if (seq >= r.cursor) {
+                r.cursor = seq;
+                r.cursorSegment = segment.id;
+            }
+            offset += FRAME_SIZE + length;
+        }
+        segment.used = offset;
+    }
+
+    private static byte[] record(byte type, long seq, long time, String recipient, String sender, String content) {
+        byte[][] strings = type == MEMO
+                ? new byte[][] { bytes(recipient), bytes(sender), bytes(content) }
+                : new byte[][] { bytes(recipient) };
+        int length = 1 + 8 + (type == MEMO ? 8 : 0);
+        for (byte[] string : strings) length += 4 + string.length;
+
+        ByteBuffer record = ByteBuffer.allocate(FRAME_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putLong(seq);
+        if (type == MEMO) record.putLong(time);
+        for (byte[] string : strings) {
+            record.putInt(string.length);
+            record.put(string);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), FRAME_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static ByteBuffer body(Segment segment, int offset) {
+        int length = segment.buffer.getInt(offset);
+        return segment.buffer.duplicate().position(offset + FRAME_SIZE).limit(offset + FRAME_SIZE + length).slice();
+    }
+
+    // the sender of the memo record at the offset
+    private static String sender(Segment segment, int offset) {
+        ByteBuffer body = body(segment, offset);
+        body.position(1 + 8 + 8);
+        body.position(body.position() + 4 + body.getInt(body.position()));
+        return string(body);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}
@@ -8,13 +8,20 @@ public class Message {
     private LocalDateTime timeStamp;
     private String content;
 
-    Message(String sender, String receiver, String content) {
+    public Message(String sender, String receiver, String content) {
         this.sender = sender;
         this.receiver = receiver;
         this.content = content;
         this.timeStamp = LocalDateTime.now();
     }
 
+    Message(String sender, String receiver, String content, LocalDateTime timeStamp) {
+        this.sender = sender;
+        this.receiver = receiver;
+        this.content = content;
+        this.timeStamp = timeStamp;
+    }
+
     public String getContent() {
         return content;
     }
@@ -22,4 +29,12 @@ public class Message {
     public String getSender() {
         return sender;
     }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public LocalDateTime getTimeStamp() {
+        return timeStamp;
+    }
 }
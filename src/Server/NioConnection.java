@@ -0,0 +1,280 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Protocol.Frame;
+import Protocol.FrameDeflater;
+import Protocol.Opcode;
+
+/**
+ * One client connection served by an event loop.
+ * Reading, decoding and writing only happen on the event loop thread, the decoded messages are passed to the
+ * session handler on the worker pool, one at a time and in arrival order. The messages to write are taken from the
+ * outbound queue of the session, every batch of pending messages goes out in a single gathering write.
+ */
+public class NioConnection {
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final Executor workers;
+    private final String remoteAddress;
+    private final int remotePort;
+    private SessionHandler handler;
+    private SelectionKey key;
+
+    // bytes of a frame that has not fully arrived yet, null while there is none so that idle connections stay small
+    private ByteBuffer partial;
+    private static final int MIN_PARTIAL = 64;
+    // the protocol of the client, null until its first bytes have arrived
+    private volatile WireFormat format = null;
+    // compresses the frames once the client has asked for it
+    private FrameDeflater deflater = null;
+
+    // messages waiting to be written by the event loop, and the frames of the batch being written
+    private OutboundQueue outbound;
+    private ByteBuffer[] writing = null;
+    // the callbacks of the messages being written, run once they are all out
+    private final List<Runnable> written = new ArrayList<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    // callbacks waiting to be run on the worker pool
+    private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    NioConnection(SocketChannel channel, NioServer.EventLoop loop, Executor workers) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.workers = workers;
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        remoteAddress = remote.getAddress().getHostAddress();
+        remotePort = remote.getPort();
+    }
+
+    void open(SessionHandler handler) {
+        this.handler = handler;
+        execute(handler::onOpen);
+    }
+
+    /**
+     * the queue the event loop takes the messages to write from, set by the session before anything is sent
+     */
+    public void setOutbound(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * whether the client speaks the binary frame protocol, false for the legacy one or before it has said
+     */
+    public boolean isBinary() {
+        return format == WireFormat.BINARY;
+    }
+
+    /**
+     * have the event loop write out whatever is queued for the client
+     */
+    public void flushLater() {
+        if (!closed) scheduleFlush();
+    }
+
+    /**
+     * close the connection once every queued message has been written
+     */
+    public void close() {
+        outbound.close();
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) loop.scheduleFlush(this);
+    }
+
+    // event loop only
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        scheduleFlush();
+    }
+
+    // event loop only, read whatever is available and dispatch every complete frame
+    void read(ByteBuffer scratch) {
+        // an unfinished frame is completed in its own buffer, anything else is read into the scratch buffer of the loop
+        ByteBuffer buffer = partial != null ? partial : scratch;
+        if (partial == null) scratch.clear();
+        int count;
+        try {
+            count = channel.read(buffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            closeNow();
+            return;
+        }
+        buffer.flip();
+
+        try {
+            if (format == null && !negotiate(buffer)) {
+                keep(buffer, scratch, WireFormat.HELLO_SIZE);
+                return;
+            }
+            int size;
+            while ((size = format.frameSize(buffer)) >= 0 && buffer.remaining() >= size) {
+                int start = buffer.position();
+                Frame frame = format.decode(buffer.array(), buffer.arrayOffset() + start, size);
+                buffer.position(start + size);
+                if (frame.getOpcode() == Opcode.COMMAND) execute(() -> handler.onMessage(frame.getText()));
+                else if (frame.getOpcode() == Opcode.HELLO) hello(frame);
+            }
+            keep(buffer, scratch, size);
+        } catch (IOException e) {
+            Log.warn("===== malformed frame from " + remoteAddress + ":" + remotePort + ", " + e.getMessage() + " =====");
+            closeNow();
+        }
+    }
+
+    // tell the protocol of the client from its first bytes, false while too few of them have arrived
+    private boolean negotiate(ByteBuffer buffer) {
+        format = WireFormat.detect(buffer);
+        if (format == null) return false;
+        if (format == WireFormat.BINARY) {
+            buffer.position(buffer.position() + WireFormat.HELLO_SIZE);
+            outbound.offer(new OutboundMessage(WireFormat.helloReply(), null));
+            scheduleFlush();
+        }
+        return true;
+    }
+
+    // the features the client asks for, once only as the frames compressed so far are the history of the next ones
+    private void hello(Frame frame) {
+        if (deflater != null) return;
+        deflater = Compression.accept(frame);
+        outbound.offer(new OutboundMessage(Compression.reply(deflater), null));
+        scheduleFlush();
+    }
+
+    // keep the bytes of an unfinished frame, in a buffer grown with the bytes that have actually arrived and not with
+    // the length the frame announces, so a header alone cannot make the server allocate a large buffer
+    private void keep(ByteBuffer buffer, ByteBuffer scratch, int frameSize) {
+        if (!buffer.hasRemaining()) {
+            partial = null;
+            return;
+        }
+        int needed = Math.max(MIN_PARTIAL, buffer.remaining() * 2);
+        if (frameSize > buffer.remaining()) needed = Math.min(needed, frameSize);
+        if (buffer != scratch && buffer.capacity() >= needed) {
+            buffer.compact();
+            partial = buffer;
+        } else {
+            ByteBuffer grown = ByteBuffer.allocate(needed);
+            grown.put(buffer);
+            partial = grown;
+        }
+    }
+
+    // event loop only, write as much of the queued messages as the socket accepts
+    void flush(OutboundMessage[] batch) {
+        flushScheduled.set(false);
+        if (closed || key == null) return;
+        try {
+            while (true) {
+                if (writing == null) {
+                    int count = outbound.poll(batch);
+                    if (count == 0) break;
+                    writing = encode(batch, count);
+                }
+                channel.write(writing);
+                if (writing[writing.length - 1].hasRemaining()) {
+                    // socket buffer is full, continue once the channel becomes writable again
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+                for (Runnable callback : written) callback.run();
+                written.clear();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (outbound.isClosed() && outbound.size() == 0) closeNow();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private ByteBuffer[] encode(OutboundMessage[] batch, int count) {
+        // anything sent before the client has spoken goes out in the legacy protocol
+        WireFormat encoding = format == null ? WireFormat.LEGACY : format;
+        ByteBuffer[] frames = new ByteBuffer[count];
+        int encoded = 0;
+        for (int i = 0; i < count; i++) {
+            if (batch[i].getOnWritten() != null) written.add(batch[i].getOnWritten());
+            try {
+                ByteBuffer frame = batch[i].encode(encoding);
+                frames[encoded++] = deflater == null ? frame : Compression.compress(deflater, frame);
+            } catch (IOException e) {
+                Log.warn("===== message dropped for " + remoteAddress + ":" + remotePort + ", " + e.getMessage() + " =====");
+            }
+            batch[i] = null;
+        }
+        if (encoded == 0) return new ByteBuffer[] { ByteBuffer.allocate(0) };
+        return encoded == count ? frames : Arrays.copyOf(frames, encoded);
+    }
+
+    // event loop only
+    void closeNow() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        outbound.abort();
+        writing = null;
+        written.clear();
+        if (deflater != null) Compression.finish(deflater, "(" + remoteAddress + ", " + remotePort + ")", null);
+        deflater = null;
+        execute(handler::onClose);
+    }
+
+    // run the callback on the worker pool after every callback queued before it, also used by the handler to get back
+    // onto this connection when some work of its own has finished elsewhere
+    void execute(Runnable callback) {
+        events.add(callback);
+        if (draining.compareAndSet(false, true)) workers.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable callback;
+            while ((callback = events.poll()) != null) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    Log.error("===== a task of the connection failed =====", e);
+                }
+            }
+            draining.set(false);
+            // a callback may have been queued between the last poll and releasing the flag
+            if (events.isEmpty() || !draining.compareAndSet(false, true)) return;
+        }
+    }
+}
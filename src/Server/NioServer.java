@@ -0,0 +1,131 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Serves all the client connections from a small fixed set of selector event loops instead of one thread per socket.
+ * An idle connection costs a channel and its session object only, threads are only used while messages are handled.
+ */
+public class NioServer {
+    private final ServerSocketChannel acceptor;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final Function<NioConnection, SessionHandler> sessionFactory;
+    private int nextLoop = 0;
+
+    NioServer(int port, int loopCount, int workerCount, Function<NioConnection, SessionHandler> sessionFactory) throws IOException {
+        this.sessionFactory = sessionFactory;
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(port), 1024);
+
+        // handlers never wait on other clients, so a fixed pool is enough
+        AtomicInteger workerIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "skynett-worker-" + workerIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * accept connections forever, spreading them over the event loops in turn
+     */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel channel = acceptor.accept();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioConnection connection = new NioConnection(channel, loop, workers);
+                connection.open(sessionFactory.apply(connection));
+                loop.register(connection);
+            } catch (IOException e) {
+                // the client went away before it could be set up
+                channel.close();
+            }
+        }
+    }
+
+    static class EventLoop extends Thread {
+        // large enough for a carried over partial frame plus a full frame
+        private static final int SCRATCH_SIZE = 4 * (UtfFrameCodec.HEADER_SIZE + UtfFrameCodec.MAX_PAYLOAD);
+
+        private final Selector selector;
+        private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+        // shared by every connection of this loop, a connection only keeps the bytes of an unfinished frame
+        private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+        // messages taken from an outbound queue to be written together
+        private final OutboundMessage[] batch = new OutboundMessage[64];
+
+        EventLoop(int index) throws IOException {
+            super("skynett-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(NioConnection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(NioConnection connection) {
+            flushes.add(connection);
+            if (Thread.currentThread() != this) selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // flushes scheduled by the loop itself while handling the last keys must not wait for the next event
+                    if (flushes.isEmpty()) selector.select();
+                    else selector.selectNow();
+
+                    NioConnection connection;
+                    while ((connection = registrations.poll()) != null) {
+                        try {
+                            connection.register(selector);
+                        } catch (IOException e) {
+                            connection.closeNow();
+                        }
+                    }
+                    while ((connection = flushes.poll()) != null) connection.flush(batch);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) connection.read(scratch);
+                        if (key.isValid() && key.isWritable()) connection.flush(batch);
+                    }
+                } catch (IOException e) {
+                    Log.error("===== " + getName() + " failed to select: " + e.getMessage() + " =====", null);
+                }
+            }
+        }
+    }
+}
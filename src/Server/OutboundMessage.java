@@ -0,0 +1,68 @@
+package Server;
+
+import Protocol.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message waiting in the outbound queue of a client.
+ * A broadcast puts the same message in the queue of every recipient, so the frame is encoded at most once per wire
+ * format and the bytes are shared by all of them.
+ */
+public class OutboundMessage {
+    private final Frame frame;
+    private final Message memo;
+    private volatile ByteBuffer legacy;
+    private volatile ByteBuffer binary;
+    // run by the writer once the message has gone out to the client, null for nothing
+    private volatile Runnable onWritten;
+
+    /**
+     * @param content the message in the legacy text form, status code first
+     * @param memo the chat message this frame carries, kept as an offline memo if the client cannot keep up,
+     * null for system messages. The receiver of the memo is left null for broadcasts, it is whoever could not keep up.
+     */
+    public OutboundMessage(String content, Message memo) {
+        this(Frame.fromLegacy(content), memo);
+    }
+
+    OutboundMessage(Frame frame, Message memo) {
+        this.frame = frame;
+        this.memo = memo;
+    }
+
+    public Frame getFrame() {
+        return frame;
+    }
+
+    public Message getMemo() {
+        return memo;
+    }
+
+    /**
+     * have the writer of the client run the callback once the message has been written, for a message to one client
+     */
+    OutboundMessage whenWritten(Runnable callback) {
+        onWritten = callback;
+        return this;
+    }
+
+    Runnable getOnWritten() {
+        return onWritten;
+    }
+
+    /**
+     * the encoded frame, the returned buffer is a view of its own over the shared bytes, which must not be modified
+     */
+    public ByteBuffer encode(WireFormat format) throws IOException {
+        // two threads may both encode the frame, either result will do
+        ByteBuffer encoded = format == WireFormat.LEGACY ? legacy : binary;
+        if (encoded == null) {
+            encoded = format.encode(frame);
+            if (format == WireFormat.LEGACY) legacy = encoded;
+            else binary = encoded;
+        }
+        return encoded.duplicate();
+    }
+}
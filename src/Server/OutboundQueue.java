@@ -0,0 +1,169 @@
+package Server;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of the messages waiting to be written to one client.
+ * Any thread may queue a message, a single writer drains the queue in batches so that the pending messages go out
+ * with one flush. When the client cannot keep up and the queue is full, the slow consumer policy decides what
+ * happens, so that senders never wait for a slow client.
+ */
+public class OutboundQueue {
+
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST,    // make room by dropping the oldest queued message
+        DISCONNECT,     // disconnect the client
+        SPILL           // keep chat messages as offline memos, drop the oldest message for anything else
+    }
+
+    // messages dropped and kept as memos over all the queues, for the metrics
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder spilled = new LongAdder();
+
+    private final OutboundMessage[] ring;
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+    // a lock rather than synchronized so that virtual threads waiting here do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final SlowConsumerPolicy policy;
+    private final Consumer<Message> spill;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, Consumer<Message> spill) {
+        ring = new OutboundMessage[capacity];
+        this.policy = policy;
+        this.spill = spill;
+    }
+
+    /**
+     * queue a message for the writer
+     * @return false if the queue is full and the policy is to disconnect the client
+     */
+    public boolean offer(OutboundMessage message) {
+        Message memo = null;
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (size == ring.length) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) return false;
+                if (policy == SlowConsumerPolicy.SPILL && message.getMemo() != null) {
+                    spilled.increment();
+                    memo = message.getMemo();
+                } else {
+                    // drop the oldest message to make room
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    size--;
+                    dropped.increment();
+                }
+            }
+            if (memo == null) {
+                ring[(head + size) % ring.length] = message;
+                size++;
+                if (size == 1) notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // outside of the lock, the memo book may be slow
+        if (memo != null) spill.accept(memo);
+        return true;
+    }
+
+    /**
+     * wait for messages and move as many as fit into the batch
+     * @return the number of messages moved, 0 once the queue has been closed and drained
+     */
+    public int take(OutboundMessage[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed) notEmpty.await();
+            return drain(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * move as many queued messages as fit into the batch, without waiting
+     */
+    public int poll(OutboundMessage[] batch) {
+        lock.lock();
+        try {
+            return drain(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(OutboundMessage[] batch) {
+        int count = Math.min(size, batch.length);
+        for (int i = 0; i < count; i++) {
+            batch[i] = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        size -= count;
+        return count;
+    }
+
+    /**
+     * no more messages will be queued, the writer finishes what is already queued
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * close the queue and forget what is still queued
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < size; i++) ring[(head + i) % ring.length] = null;
+            size = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // messages dropped for clients that could not keep up, since the start of the server
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // chat messages kept as memos for clients that could not keep up, since the start of the server
+    public static long getSpilled() {
+        return spilled.sum();
+    }
+}
@@ -0,0 +1,85 @@
+package Server;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, stored as "pbkdf2$iterations$salt$hash" with the salt and hash in base64.
+ * Every hash carries its own cost, so the cost can be raised without invalidating the stored ones: a password whose
+ * hash is cheaper than the current cost, or still in plain text, is hashed again after a successful login.
+ */
+public class PasswordHasher {
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int iterations = 120_000;
+
+    public static void configure(int iterationCount) {
+        iterations = iterationCount;
+    }
+
+    public static int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * the stored form of a new password
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        int cost = iterations;
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + cost + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(derive(password, salt, cost));
+    }
+
+    /**
+     * whether the password matches the stored hash, or the stored plain text of an account not yet migrated
+     */
+    public static boolean verify(String password, String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] fields = stored.split("\\$");
+        if (fields.length != 4) return false;
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(fields[3]);
+            return MessageDigest.isEqual(expected, derive(password, base64.decode(fields[2]), Integer.parseInt(fields[1])));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * whether the stored password should be hashed again with the current cost
+     */
+    public static boolean needsRehash(String stored) {
+        if (!stored.startsWith(PREFIX)) return true;
+        String[] fields = stored.split("\\$");
+        try {
+            return fields.length != 4 || Integer.parseInt(fields[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int cost) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The logged in accounts in the order they logged in, for whoelse and whoelsesince.
+ * Logins are appended and logouts leave a hole that is squeezed out once holes make up half of the list. Readers get
+ * an immutable snapshot, built on the first read after a login or logout and shared by every read until the next one,
+ * so "logged in within the last N seconds" is a binary search for the start of the range.
+ */
+public class PresenceIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The accounts online at one version of the index, oldest login first.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final long[] loginTimes;
+        private final Account[] accounts;
+
+        private Snapshot(long version, long[] loginTimes, Account[] accounts) {
+            this.version = version;
+            this.loginTimes = loginTimes;
+            this.accounts = accounts;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return accounts.length;
+        }
+
+        public Account get(int index) {
+            return accounts[index];
+        }
+
+        public long getLoginTime(int index) {
+            return loginTimes[index];
+        }
+
+        /**
+         * the index of the first account that logged in at or after the given time in milliseconds, size() if none did
+         */
+        public int since(long time) {
+            int low = 0;
+            int high = loginTimes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (loginTimes[mid] < time) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * one page of the names from the given index on, one per line, leaving out the viewer and the accounts that
+         * have blocked it. A full page ends with the command asking for the next one, which is more + the page number.
+         */
+        public String list(int from, Account viewer, int page, int pageSize, String more) {
+            CompactBitmap blocking = Account.blocks().blockedBy(viewer.getId());
+            int skip = (page - 1) * pageSize;
+            int listed = 0;
+            StringBuilder names = new StringBuilder();
+            for (int i = from; i < accounts.length; i++) {
+                Account act = accounts[i];
+                if (act == viewer || blocking.contains(act.getId())) continue;
+                if (skip > 0) {
+                    skip--;
+                } else if (listed == pageSize) {
+                    names.append("Enter \"").append(more).append(page + 1).append("\" for more.\n");
+                    break;
+                } else {
+                    names.append(act.getUsername()).append('\n');
+                    listed++;
+                }
+            }
+            return names.toString();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long[] loginTimes = new long[INITIAL_CAPACITY];
+    private Account[] accounts = new Account[INITIAL_CAPACITY];
+    private int count;      // slots in use, holes included
+    private int holes;
+    // the slot of every account online by account id, -1 for offline
+    private int[] slots = newSlots(INITIAL_CAPACITY, new int[0]);
+
+    private volatile long version;
+    private volatile Snapshot snapshot = new Snapshot(0, new long[0], new Account[0]);
+
+    /**
+     * the account has logged in now
+     */
+    public void join(Account account) {
+        join(account, CoarseClock.millis());
+    }
+
+    /**
+     * the account has logged in at the given time, e.g. on another node of a cluster.
+     * A login older than the latest one is moved into its place, the holes keep their times so the order holds.
+     */
+    public void join(Account account, long loginTime) {
+        lock.lock();
+        try {
+            int id = account.getId();
+            if (id >= slots.length) slots = newSlots(Math.max(slots.length * 2, id + 1), slots);
+            if (slots[id] >= 0) clear(slots[id]);
+            if (count == accounts.length) {
+                if (holes > 0) squeeze();
+                else {
+                    loginTimes = Arrays.copyOf(loginTimes, count * 2);
+                    accounts = Arrays.copyOf(accounts, count * 2);
+                }
+            }
+            int slot = count;
+            if (count > 0 && loginTimes[count - 1] > loginTime) {
+                slot = after(loginTime);
+                System.arraycopy(loginTimes, slot, loginTimes, slot + 1, count - slot);
+                System.arraycopy(accounts, slot, accounts, slot + 1, count - slot);
+                for (int i = slot + 1; i <= count; i++) {
+                    if (accounts[i] != null) slots[accounts[i].getId()] = i;
+                }
+            }
+            loginTimes[slot] = loginTime;
+            accounts[slot] = account;
+            slots[id] = slot;
+            count++;
+            version++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the account has logged out
+     */
+    public void leave(Account account) {
+        lock.lock();
+        try {
+            int id = account.getId();
+            if (id >= slots.length || slots[id] < 0) return;
+            clear(slots[id]);
+            slots[id] = -1;
+            if (holes > INITIAL_CAPACITY && holes * 2 > count) squeeze();
+            version++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the accounts online now, the same snapshot until someone logs in or out
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == version) return current;
+        lock.lock();
+        try {
+            if (snapshot.version != version) {
+                int size = count - holes;
+                long[] times = new long[size];
+                Account[] online = new Account[size];
+                int j = 0;
+                for (int i = 0; i < count; i++) {
+                    if (accounts[i] == null) continue;
+                    times[j] = loginTimes[i];
+                    online[j++] = accounts[i];
+                }
+                snapshot = new Snapshot(version, times, online);
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the first slot of a login after the given time
+    private int after(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (loginTimes[mid] <= time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // a larger slot table with the slots of the old one
+    private static int[] newSlots(int length, int[] from) {
+        int[] grown = Arrays.copyOf(from, length);
+        Arrays.fill(grown, from.length, length, -1);
+        return grown;
+    }
+
+    private void clear(int slot) {
+        accounts[slot] = null;
+        holes++;
+    }
+
+    // move the accounts down over the holes
+    private void squeeze() {
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (accounts[i] == null) continue;
+            loginTimes[j] = loginTimes[i];
+            accounts[j] = accounts[i];
+            slots[accounts[j].getId()] = j;
+            j++;
+        }
+        Arrays.fill(accounts, j, count, null);
+        count = j;
+        holes = 0;
+    }
+}
@@ -0,0 +1,244 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the server, per command and for logins, broadcasts and slow clients.
+ * Recording only adds to striped counters, so the threads serving the clients never wait for each other or for a
+ * reader. The gauges are not kept up to date at all, they are worked out from the server state when asked for.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final String OBJECT_NAME = "Skynett:type=ServerMetrics";
+    private static final String OTHER = "other";
+    private static final String[] COMMANDS = { "login", "resume", "message", "broadcast", "whoelse", "whoelsesince", "block",
+            "unblock", "startprivate", "private", "stopprivate", "join", "leave", "say", "memoack", "logout", "help", "stats",
+            OTHER };
+
+    // what the server holds at the moment, read when a gauge is asked for
+    public interface Gauges {
+        int onlineSessions();
+
+        long memoBacklog();
+
+        int memoBacklog(String username);
+
+        long outboundQueueDepth();
+
+        int deepestOutboundQueue();
+    }
+
+    // the number of times one command was handled and how long handling it took
+    public static class CommandStats {
+        private final LongAdder count = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public void record(long nanos) {
+            count.increment();
+            latency.record(nanos);
+        }
+    }
+
+    private final Gauges gauges;
+    private final FanOut fanOut;
+    // never written after the constructor, looked up without locking
+    private final Map<String, CommandStats> commands;
+
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder accountLockouts = new LongAdder();
+    private final LongAdder addressBlocks = new LongAdder();
+    private final LongAdder loginsTurnedAway = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    // time to check or hash a password on the verifier pool, queueing included
+    private final LatencyHistogram verifyLatency = new LatencyHistogram();
+
+    ServerMetrics(Gauges gauges, FanOut fanOut) {
+        this.gauges = gauges;
+        this.fanOut = fanOut;
+        Map<String, CommandStats> stats = new LinkedHashMap<>();
+        for (String command : COMMANDS) stats.put(command, new CommandStats());
+        commands = Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * make the metrics visible over JMX
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Log.warn("===== cannot register the metrics over JMX, " + e.getMessage() + " =====");
+        }
+    }
+
+    // the stats of the command, those of "other" for a command that is not counted separately
+    public CommandStats command(String name) {
+        CommandStats stats = commands.get(name);
+        return stats != null ? stats : commands.get(OTHER);
+    }
+
+    public void loginFailed() {
+        loginFailures.increment();
+    }
+
+    public void accountLocked() {
+        accountLockouts.increment();
+    }
+
+    public void addressBlocked() {
+        addressBlocks.increment();
+    }
+
+    public void loginTurnedAway() {
+        loginsTurnedAway.increment();
+    }
+
+    public void sessionResumed() {
+        sessionsResumed.increment();
+    }
+
+    public void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    public void passwordVerified(long nanos) {
+        verifyLatency.record(nanos);
+    }
+
+    @Override
+    public int getOnlineSessions() {
+        return gauges.onlineSessions();
+    }
+
+    @Override
+    public long getMemoBacklog() {
+        return gauges.memoBacklog();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        return gauges.outboundQueueDepth();
+    }
+
+    @Override
+    public int getDeepestOutboundQueue() {
+        return gauges.deepestOutboundQueue();
+    }
+
+    @Override
+    public long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    @Override
+    public long getAccountLockouts() {
+        return accountLockouts.sum();
+    }
+
+    @Override
+    public long getAddressBlocks() {
+        return addressBlocks.sum();
+    }
+
+    @Override
+    public long getLoginsTurnedAway() {
+        return loginsTurnedAway.sum();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDrops() {
+        return OutboundQueue.getDropped();
+    }
+
+    @Override
+    public long getSlowConsumerSpills() {
+        return OutboundQueue.getSpilled();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return fanOut.getPublished();
+    }
+
+    @Override
+    public double getFanOutP99Millis() {
+        return fanOut.getLatency().percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public long getCompressedBytesIn() {
+        return Compression.getBytesIn();
+    }
+
+    @Override
+    public long getCompressedBytesOut() {
+        return Compression.getBytesOut();
+    }
+
+    @Override
+    public String[] getCommands() {
+        return COMMANDS.clone();
+    }
+
+    @Override
+    public long commandCount(String command) {
+        return command(command).count.sum();
+    }
+
+    @Override
+    public double commandLatencyMillis(String command, double fraction) {
+        return command(command).latency.percentile(fraction) / 1e6;
+    }
+
+    @Override
+    public int memoBacklogOf(String username) {
+        return gauges.memoBacklog(username);
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder("Server statistics:\n");
+        report.append("  online sessions ").append(getOnlineSessions())
+                .append(", offline messages waiting ").append(getMemoBacklog())
+                .append(", outbound queues ").append(getOutboundQueueDepth())
+                .append(" messages (deepest ").append(getDeepestOutboundQueue()).append(")\n");
+        report.append("  failed logins ").append(getLoginFailures())
+                .append(", account lockouts ").append(getAccountLockouts())
+                .append(", address blocks ").append(getAddressBlocks())
+                .append(", logins turned away ").append(getLoginsTurnedAway())
+                .append(", sessions resumed ").append(getSessionsResumed())
+                .append(", slow users disconnected ").append(getSlowConsumerDisconnects()).append("\n");
+        report.append("  messages dropped for slow users ").append(getSlowConsumerDrops())
+                .append(", kept as offline messages ").append(getSlowConsumerSpills()).append("\n");
+        report.append("  password checks ").append(verifyLatency.count()).append(", ").append(verifyLatency.summary()).append("\n");
+        report.append("  broadcasts ").append(getBroadcasts()).append(", fan-out ").append(fanOut.getLatency().summary()).append("\n");
+        if (Compression.getFrames() > 0) {
+            report.append(String.format("  compression %d frames, %d bytes sent as %d (%.0f%%), %.1f ms%n", Compression.getFrames(),
+                    getCompressedBytesIn(), getCompressedBytesOut(), 100.0 * getCompressedBytesOut() / Math.max(1, getCompressedBytesIn()),
+                    Compression.getNanos() / 1e6));
+        }
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            long count = entry.getValue().count.sum();
+            if (count == 0) continue;
+            report.append(String.format("  %-13s %8d, %s%n", entry.getKey(), count, entry.getValue().latency.summary()));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package Server;
+
+/**
+ * The metrics of a running server as seen over JMX, under the name "Skynett:type=ServerMetrics".
+ * Counters run from the start of the server, gauges are read at the time they are asked for.
+ */
+public interface ServerMetricsMBean {
+
+    int getOnlineSessions();
+
+    // offline messages waiting for all the users
+    long getMemoBacklog();
+
+    // messages waiting to be written, over all the sessions
+    long getOutboundQueueDepth();
+
+    // messages waiting for the session furthest behind
+    int getDeepestOutboundQueue();
+
+    long getLoginFailures();
+
+    // accounts locked after running out of password tries
+    long getAccountLockouts();
+
+    // addresses blocked after too many failed logins
+    long getAddressBlocks();
+
+    // logins turned away because too many passwords were waiting to be checked
+    long getLoginsTurnedAway();
+
+    // sessions taken up again on a new connection with their token
+    long getSessionsResumed();
+
+    long getSlowConsumerDisconnects();
+
+    // messages dropped for, and chat messages kept as memos for, clients that could not keep up
+    long getSlowConsumerDrops();
+
+    long getSlowConsumerSpills();
+
+    long getBroadcasts();
+
+    // p99 time from publishing a broadcast to the last recipient having it queued
+    double getFanOutP99Millis();
+
+    // bytes of the frames to the clients with compression on, before and after compressing them
+    long getCompressedBytesIn();
+
+    long getCompressedBytesOut();
+
+    // the commands counted separately, anything else is counted as "other"
+    String[] getCommands();
+
+    long commandCount(String command);
+
+    // the latency below which the given fraction of the command took, in milliseconds
+    double commandLatencyMillis(String command, double fraction);
+
+    // offline messages waiting for one user
+    int memoBacklogOf(String username);
+
+    // everything above as text, as the stats command shows it
+    String report();
+}
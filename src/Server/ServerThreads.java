@@ -0,0 +1,50 @@
+package Server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the server, platform threads by default or virtual threads with "-Dskynett.threads=virtual".
+ * Virtual threads need Java 21, on older runtimes the server falls back to platform threads.
+ */
+public class ServerThreads {
+    private static ThreadFactory virtualFactory = null;
+
+    private ServerThreads() {
+    }
+
+    static void configure(String mode) {
+        if (!mode.equals("virtual")) return;
+        try {
+            // looked up reflectively so that the server still compiles and runs on runtimes without virtual threads
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "skynett-virtual-", 0L);
+            virtualFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("===== Virtual threads are not available on this Java runtime, using platform threads =====");
+        }
+    }
+
+    public static boolean isVirtual() {
+        return virtualFactory != null;
+    }
+
+    // start a new thread running the given task
+    static Thread start(String name, Runnable task) {
+        Thread thread;
+        if (virtualFactory != null) {
+            thread = virtualFactory.newThread(task);
+            thread.setName(name);
+        } else {
+            thread = new Thread(task, name);
+        }
+        thread.start();
+        return thread;
+    }
+
+    // run a short piece of work on its own virtual thread, or on the calling thread when threads are expensive
+    static void offload(String name, Runnable task) {
+        if (virtualFactory != null) start(name, task);
+        else task.run();
+    }
+}
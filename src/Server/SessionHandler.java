@@ -0,0 +1,17 @@
+package Server;
+
+/**
+ * Receives the life cycle events of a client connection that is driven by an event loop instead of its own thread.
+ * All the callbacks of one connection are made one at a time, in the order the events happened.
+ */
+public interface SessionHandler {
+
+    // the connection has been accepted, called before any message
+    void onOpen();
+
+    // a complete message has been received from the client
+    void onMessage(String message);
+
+    // the connection has been closed, either by the client or by the server
+    void onClose();
+}
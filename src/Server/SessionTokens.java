@@ -0,0 +1,135 @@
+package Server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The session tokens handed out at login, so that a client that loses its connection can take its session up again
+ * on a new one with a single command. A token is good for as long as its session lasts and for the resume window
+ * after the session is lost, resuming uses it up and the resumed session gets a new one. Logging in with the password
+ * again revokes every token of the user. The tokens are only known to the node that issued them.
+ */
+public class SessionTokens {
+    private static final SecureRandom random = new SecureRandom();
+
+    // the user of a token and, once the session is lost, what happens when the window closes
+    private static class Session {
+        private final String username;
+        private InactivityWheel.Entry expiry;
+        private Runnable onExpire;
+
+        private Session(String username) {
+            this.username = username;
+        }
+    }
+
+    private final InactivityWheel wheel;
+    private final long windowMillis;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // the tokens of every user that has any
+    private final ConcurrentHashMap<String, Set<String>> byUser = new ConcurrentHashMap<>();
+
+    SessionTokens(InactivityWheel wheel, long windowMillis) {
+        this.wheel = wheel;
+        this.windowMillis = windowMillis;
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    // the resume window in seconds
+    public long getWindowSeconds() {
+        return windowMillis / 1000;
+    }
+
+    /**
+     * a new token for a session of the user
+     */
+    public String issue(String username) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username));
+        // in the lock of the user's entry, so that a set emptied at the same time is not the one added to
+        byUser.compute(username, (key, tokens) -> {
+            if (tokens == null) tokens = ConcurrentHashMap.newKeySet();
+            tokens.add(token);
+            return tokens;
+        });
+        return token;
+    }
+
+    /**
+     * the session of the token is lost, it can be resumed within the window, onExpire runs if it is not
+     */
+    public void release(String token, Runnable onExpire) {
+        Session session = sessions.get(token);
+        if (session == null) return;
+        synchronized (session) {
+            session.onExpire = onExpire;
+            session.expiry = wheel.register(windowMillis, () -> expire(token, session));
+        }
+    }
+
+    /**
+     * the session of the token is over for good, e.g. logged out
+     */
+    public void revoke(String token) {
+        Session session = sessions.remove(token);
+        if (session != null) cancel(token, session);
+    }
+
+    /**
+     * every session of the user is over for good, e.g. the user has logged in with the password again
+     */
+    public void revokeAll(String username) {
+        Set<String> tokens = byUser.get(username);
+        if (tokens == null) return;
+        for (String token : tokens) revoke(token);
+    }
+
+    /**
+     * use the token up to resume its session
+     * @return the user of the session, null if the token is unknown or its window has closed
+     */
+    public String redeem(String token) {
+        Session session = sessions.remove(token);
+        if (session == null) return null;
+        cancel(token, session);
+        return session.username;
+    }
+
+    // the number of tokens good for a session, live or lost
+    public int size() {
+        return sessions.size();
+    }
+
+    private void expire(String token, Session session) {
+        if (!sessions.remove(token, session)) return;
+        forget(token, session);
+        Runnable onExpire;
+        synchronized (session) {
+            onExpire = session.onExpire;
+        }
+        if (onExpire != null) onExpire.run();
+    }
+
+    private void cancel(String token, Session session) {
+        forget(token, session);
+        synchronized (session) {
+            if (session.expiry != null) wheel.cancel(session.expiry);
+            session.onExpire = null;
+        }
+    }
+
+    // the token is no longer one of its user
+    private void forget(String token, Session session) {
+        byUser.computeIfPresent(session.username, (username, tokens) -> {
+            tokens.remove(token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+}
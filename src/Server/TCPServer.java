@@ -5,15 +5,27 @@
 
 package Server;
 import java.net.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.ByteBuffer;
+
+import Protocol.Frame;
+import Protocol.FrameDeflater;
+import Protocol.Opcode;
 
 public class TCPServer {
 
@@ -22,24 +34,114 @@ public class TCPServer {
     private static Integer serverPort;
 
     // map between username and account
-    private static Map<String, Account> yellowBook;
+    private static CredentialStore yellowBook;
 
-    // map between username and message memo for this user/account
-    private static Map<String, List<Message>> memo;
+    // the offline messages of every user, kept on disk
+    private static MemoStore memoStore;
+    private static int memoPageSize;
 
     // map between username and its client-thread
     private static Map<String, ClientThread> onlineThreads;
 
     private static int lockDuration;    // seconds
     private static int inactiveThres;
+    private static int privateTimeout;  // seconds to answer a private chat invitation
+
+    // one timing wheel shared by every client for the inactivity timeouts
+    private static InactivityWheel inactivityWheel;
+
+    // how many messages may wait for a client, and what happens when a client cannot keep up
+    private static int outboundCapacity;
+    private static OutboundQueue.SlowConsumerPolicy slowConsumerPolicy;
+
+    // delivers the broadcasts off the thread of the broadcaster
+    private static FanOut fanOut;
+    // the logged in clients by account id, the same clients as onlineThreads
+    private static final IdTable<ClientThread> sessions = new IdTable<>();
+
+    // the named rooms and their members, rooms last as long as someone is in them
+    private static final ChatRooms rooms = new ChatRooms();
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    // the logged in accounts in login order, for whoelse and whoelsesince
+    private static final PresenceIndex presence = new PresenceIndex();
+    private static int presencePageSize;
+
+    // failed logins by client address
+    private static LoginAttempts loginAttempts;
+
+    // the tokens of the sessions logged in with a single command, to resume them on a new connection
+    private static SessionTokens sessionTokens;
+    // how long a resume waits for the lost session to finish ending
+    private static final long HAND_OVER_MILLIS = 5000;
+
+    // checks and hashes the passwords, apart from the threads serving the clients
+    private static VerifierPool verifier;
+
+    // the other nodes of the cluster and the users on them, a cluster of one unless configured
+    private static Cluster cluster = Cluster.alone();
+
+    // counters and latencies of the server, also over JMX
+    private static ServerMetrics metrics;
+    // the users allowed to see them with the stats command
+    private static Set<String> admins;
+
+
+    // the commands of the clients, by name, each with the arguments it needs
+    private static final CommandRegistry<ClientThread> commands = new CommandRegistry<>();
+    static {
+        commands.register("login", 0, "login [username password]", ClientThread::login).anonymous();
+        commands.register("resume", 1, "resume token", ClientThread::resume).anonymous();
+        commands.register("message", 2, "message receiver content", ClientThread::message).payload("Error: Message cannot be empty");
+        commands.register("logout", 0, "logout", ClientThread::logout);
+        commands.register("whoelse", 0, "whoelse [page]", ClientThread::whoelse);
+        commands.register("whoelsesince", 1, "whoelsesince window_size [page]", ClientThread::whoelsesince);
+        commands.register("broadcast", 1, "broadcast content", ClientThread::broadcast);
+        commands.register("block", 1, "block target_user", ClientThread::block);
+        commands.register("unblock", 1, "unblock target_user", ClientThread::unblock);
+        commands.register("memoack", 0, "memoack", ClientThread::memoack);
+        commands.register("help", 0, "help", ClientThread::help);
+        commands.register("startprivate", 1, "startprivate target_user", ClientThread::startprivate);
+        commands.register("stats", 0, "stats [user]", ClientThread::stats);
+        commands.register("join", 1, "join room", ClientThread::join);
+        commands.register("leave", 1, "leave room", ClientThread::leave);
+        commands.register("say", 2, "say room content", ClientThread::say).payload("Error: Message cannot be empty");
+        // the private chats themselves are between the clients, the server only hears of them
+        commands.register("private", 0, "private target_user content", (client, line) -> true);
+        commands.register("stopprivate", 0, "stopprivate target_user", (client, line) -> true);
+    }
 
+    // the steps of the login conversation, each expecting one answer from the client
+    // VERIFYING while the password is being checked or hashed on the verifier pool
+    private enum LoginStep { USERNAME, PASSWORD, REGISTER_CONFIRM, NEW_PASSWORD, VERIFYING }
 
+    // the steps of a private chat invitation, each waiting for one answer from the invited client
+    private enum InvitationState { AWAITING_ANSWER, AWAITING_PORT, DONE }
+
+    // an outstanding invitation to a private chat, owned by the invited client
+    private static class PrivateInvitation {
+        private final String inviterName;
+        // the answers for the inviter, which may be on another node
+        private final Consumer<Frame> inviter;
+        private InvitationState state = InvitationState.AWAITING_ANSWER;
+        private InactivityWheel.Entry timeout;
+
+        PrivateInvitation(String inviterName, Consumer<Frame> inviter) {
+            this.inviterName = inviterName;
+            this.inviter = inviter;
+        }
+
+        void tellInviter(String message) {
+            inviter.accept(Frame.fromLegacy(message));
+        }
+    }
 
     // define ClientThread for handling multi-threading issue
-    // ClientThread needs to extend Thread and override run() method
-    private static class ClientThread extends Thread {
+    // ClientThread either runs on its own thread reading from the socket (run()), or is driven by the event loops of the NioServer
+    private static class ClientThread implements Runnable, SessionHandler {
         private final Socket clientSocket;
-        protected boolean clientAlive = false;
+        private final NioConnection connection;
+        protected volatile boolean clientAlive = false;
         private Account userAccount;
         private String clientID;
         private String clientAddress;
@@ -47,52 +149,153 @@ public class TCPServer {
         private ClientMessageThread msgSender;
         protected DataInputStream dataInputStream;
         protected DataOutputStream dataOutputStream;
-        private String answer = null;
-        private Boolean answerMode = false; // default to be command mode
+        // the protocol of a blocking client, decided by its first bytes, the event loops keep it on the NioConnection
+        private volatile WireFormat wireFormat = null;
+        // compresses the frames of a blocking client once it has asked for it, used by the sender only
+        private volatile FrameDeflater deflater = null;
+        private volatile Boolean answerMode = false; // default to be command mode
+        // private chat invitations to this client, the first one is the one the client is answering
+        private final Deque<PrivateInvitation> invitations = new ArrayDeque<>();
+        private final ReentrantLock invitationLock = new ReentrantLock();
+        private LoginStep loginStep = null;  // null when not logging in
+        private String loginName;
+        // the password that came with the login command, for the account it may go on to create
+        private String loginPassword;
+        // whether the login came in a single command, it is then answered with a session token
+        private boolean tokenWanted = false;
+        // the token to resume this session with, null if it has none
+        private volatile String sessionToken;
+        // the session has been resumed on another connection, this one ends without logging the user out
+        private volatile boolean handedOver = false;
+        // the session is being torn down, by exactly one thread, and once that is done
+        private final AtomicBoolean ending = new AtomicBoolean();
+        private final CompletableFuture<Void> ended = new CompletableFuture<>();
+        private int tryout;
+        // offline messages sent in the last page and not acknowledged yet, and the number of that page
+        private int memosInFlight = 0;
+        private int memoPage = 0;
+        // the paging runs on the writer too, when it has written a page to a client that never acknowledges one
+        private final ReentrantLock memoLock = new ReentrantLock();
+        private InactivityWheel.Entry inactivity;
+        // the command being handled, for the log
+        private String command;
+        // the tokens of the line being handled, reused for every line
+        private final CommandLine line = new CommandLine();
+        // the rooms this client has joined, it leaves them when it goes offline
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+        // messages waiting to be written to the client
+        private final OutboundQueue outbound = new OutboundQueue(outboundCapacity, slowConsumerPolicy, this::spill);
+
 
+        // the single writer of the messages queued for this client
+        private class ClientMessageThread implements Runnable {
 
-        private class ClientMessageThread extends Thread {
             @Override
             public void run() {
-                super.run();
-                while (clientAlive) {
-                    // infinite loop waiting to send message to the client
+                OutboundMessage[] batch = new OutboundMessage[64];
+                while (true) {
+                    int count;
+                    try {
+                        count = outbound.take(batch);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // closed and everything written
+                    if (count == 0) {
+                        closeSocket();
+                        return;
+                    }
+                    if (!write(batch, count)) {
+                        closeSocket();
+                        return;
+                    }
                 }
             }
 
-            public void sendMessage(String content) {
+            public void start() {
+                // on the event loops the loop itself is the writer
+                if (connection == null) ServerThreads.start("sender-" + clientID, this);
+            }
+
+            public void sendMessage(OutboundMessage message) {
+                if (!outbound.offer(message)) {
+                    // the client cannot keep up, do not let it hold the sender back
+                    log(Log.Level.WARN, "===== the user is too slow to receive messages, disconnecting =====");
+                    metrics.slowConsumerDisconnected();
+                    outbound.abort();
+                    clientExit();
+                    return;
+                }
+                if (connection != null) connection.flushLater();
+            }
+
+            public void close() {
+                if (connection != null) connection.close();
+                else outbound.close();
+            }
+
+            // write all the pending messages, then flush once
+            private boolean write(OutboundMessage[] batch, int count) {
+                // anything sent before the client has spoken goes out in the legacy protocol
+                WireFormat format = wireFormat == null ? WireFormat.LEGACY : wireFormat;
+                List<Runnable> written = null;
                 try {
-                    dataOutputStream.writeUTF(content);
+                    for (int i = 0; i < count; i++) {
+                        if (batch[i].getOnWritten() != null) {
+                            if (written == null) written = new ArrayList<>();
+                            written.add(batch[i].getOnWritten());
+                        }
+                        ByteBuffer frame = null;
+                        try {
+                            frame = batch[i].encode(format);
+                        } catch (IOException e) {
+                            // too long for the protocol of the client
+                            log(Log.Level.WARN, "===== message dropped, " + e.getMessage() + " =====");
+                        }
+                        if (frame != null && deflater != null) frame = Compression.compress(deflater, frame);
+                        if (frame != null) dataOutputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        batch[i] = null;
+                    }
                     dataOutputStream.flush();
+                    if (written != null) for (Runnable callback : written) callback.run();
+                    return true;
                 } catch (EOFException e) {
-                    System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                    log(Log.Level.INFO, "===== the user disconnected =====");
                     clientExit();
                 } catch (IOException e) {
-                    System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                    log(Log.Level.INFO, "===== the user disconnected =====");
                     clientExit();
                 }
+                return false;
+            }
+
+            private void closeSocket() {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+                if (deflater != null) Compression.finish(deflater, clientID, userAccount != null ? userAccount.getUsername() : loginName);
             }
         }
 
         ClientThread(Socket clientSocket) {
             this.clientSocket = clientSocket;
+            this.connection = null;
+        }
+
+        ClientThread(NioConnection connection) {
+            this.clientSocket = null;
+            this.connection = connection;
+            connection.setOutbound(outbound);
         }
 
         @Override
         public void run() {
-            super.run();
-
             // get client Internet Address and port number
             clientAddress = clientSocket.getInetAddress().getHostAddress();
             clientPort = clientSocket.getPort();
-            clientID = "("+ clientAddress + ", " + clientPort + ")";
-
-            // start the message sender
-            msgSender = new ClientMessageThread();
-            msgSender.run();
-
-            System.out.println("===== New connection created for user - " + clientID + "\n login initiated...");
-            clientAlive = true;
+            openSession();
 
             // define the dataInputStream to get message (input) from client
             // DataInputStream - used to acquire input from client
@@ -111,283 +314,752 @@ public class TCPServer {
                 assert dataInputStream != null;
                 assert dataOutputStream != null;
 
-                Timer t = startTimer();
-                
                 String message = acceptClientMessage();
+                if (!clientAlive) break;
+                if (message != null) handleMessage(message);
+            }
+        }
+
+        @Override
+        public void onOpen() {
+            clientAddress = connection.getRemoteAddress();
+            clientPort = connection.getRemotePort();
+            openSession();
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (clientAlive) handleMessage(message);
+        }
+
+        @Override
+        public void onClose() {
+            if (clientAlive) {
+                log(Log.Level.INFO, "===== the user disconnected =====");
+                clientExit();
+            }
+        }
 
-                // this message might be used for command, or answer for a question from the message sender trigger by another thread, i.e. another user
-                if (answerMode) {
-                    answer = message;
-                    // exit answer mode
-                    answerMode = false;
-                    continue;
+        private void openSession() {
+            clientID = "("+ clientAddress + ", " + clientPort + ")";
+
+            // start the message sender
+            msgSender = new ClientMessageThread();
+            msgSender.start();
+
+            log(Log.Level.INFO, "===== New connection created, login initiated =====");
+            clientAlive = true;
+            inactivity = inactivityWheel.register(inactiveThres * 1000L, () -> onConnection(this::timeout));
+        }
+
+        /**
+         * handle one message from the client, the inactivity deadline moves on with each message
+         */
+        private void handleMessage(String message) {
+            inactivityWheel.touch(inactivity);
+            try {
+                dispatch(message);
+            } finally {
+                // the handling itself may have taken a while
+                inactivityWheel.touch(inactivity);
+            }
+        }
+
+        private void dispatch(String message) {
+            // this message might be used for command, or answer for a question from the message sender trigger by another thread, i.e. another user
+            if (answerMode) {
+                // exit answer mode
+                answerMode = false;
+                answerInvitation(message);
+                return;
+            }
+
+            if (loginStep == LoginStep.VERIFYING) {
+                sendClientMessage("0Please wait, your password is being checked.\n");
+                return;
+            }
+
+            // this message answers a question of the login conversation
+            if (loginStep != null) {
+                continueLogin(message);
+                return;
+            }
+
+            CommandLine line = this.line.reset(message);
+            CommandRegistry.Command<ClientThread> found = commands.find(line);
+
+            if (userAccount == null && (found == null || !found.isAnonymous())) {
+                sendClientMessage("0Please login first.\n");
+                return;
+            }
+
+            ServerMetrics.CommandStats stats = metrics.command(found == null ? null : found.getName());
+            long start = System.nanoTime();
+            try {
+                if (found == null) {
+                    String name = line.size() == 0 ? "" : line.get(0);
+                    sendClientMessage("0Command \"" + name + "\" does not exist, enter \"help\" to list all supported commands.\n");
+                    return;
                 }
+                command = found.getName();
+                String error = found.check(line);
+                if (error == null) error = found.run(this, line);
+                if (error != null) sendClientMessage("0" + error + "\n");
+            } finally {
+                command = null;
+                stats.record(System.nanoTime() - start);
+            }
+        }
 
-                String[] commands = message.split("\\s+");
+        private boolean login(CommandLine line) {
+            log(Log.Level.INFO, "[recv] login request");
+            if (line.arguments() == 1) return false;
+            if (line.arguments() > 1) {
+                // username and password in one go, no questions unless the account is new
+                loginName = line.get(1);
+                tokenWanted = sessionTokens.isEnabled();
+                if (yellowBook.get(loginName) == null) {
+                    loginPassword = line.rest(2);
+                    askToRegister();
+                } else {
+                    tryout = 3;
+                    loginStep = LoginStep.PASSWORD;
+                    continueLogin(line.rest(2));
+                }
+                return true;
+            }
 
-                if (commands[0].equals("login")) {
-                    System.out.println("[recv] login request from user - " + clientID);
-                    t.cancel();
-                      
-                    // prompt the user to enter username
-                    sendClientMessage("0Username: ");
+            // prompt the user to enter username
+            sendClientMessage("0Username: ");
+            loginStep = LoginStep.USERNAME;
 
-                    // waiting for the username
-                    String username = acceptClientMessage();
-            
-                    // check if the username exist
-                    Account act = yellowBook.get(username);
-                    if (act != null) {
-                        // check password
-                        int tryout = 3;
-                        while (true) {
-                            sendClientMessage("0Password: ");
-                            String password = acceptClientMessage();
-                            int result = act.login(password);
-                            if (result == 0) {
-                                onlineThreads.put(username, this);
-                                userAccount = act;                                    
-                                sendClientMessage("0Login successful! Welcome to Skynett!\nPlease enter command below:\n");
-                                
-                                // push the memo if there is 
-                                List<Message> messages = memo.get(username);
-                                if (messages != null) {
-                                    for (Message m : messages) {
-                                        System.out.println(m.getContent());
-                                        sendClientMessage("0" + m.getSender() + ": " + m.getContent() + "\n");
-                                    }
-                                }
-
-                                broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged in.\n");
-                                break;
-                            } else if (result == 1) {
-                                tryout--;
-                                if (tryout == 0) {
-                                    sendClientMessage("1Invalid Password. Your account is locked for " + lockDuration + " seconds. Please try again later\n");
-                                    // lock the account
-                                    act.noticeLocked(lockDuration);
-                                    //System.out.println("User with userid " + clientID + " is locked due to multiple loggin failure.");
-                                    break;
-                                } else sendClientMessage("0Password incorrect. You have " + tryout + " more chances to try.\n");
-                            } else if (result == 2) {
-                                sendClientMessage("1This account is already logged in.\n");
-                                break;
-                            } else if (result == 3) {
-                                sendClientMessage("1This account has been blocked due to multiple login failures. Please try again later\n");
-                                break;
-                            }
-                        }
-                        
-                    } 
-
-                    // username does not exist, ask if to create new account
-                    else {
-                        sendClientMessage("0Username does not exist, do you want to create it?(y/n): ");
-                        String msg = acceptClientMessage();
-                        System.out.print(msg);
-                        if (msg.equals("y") || msg.equals("Y")) {
-                            // start registering
-                            System.out.println("Start registering account with username: " + username);
-                            // get the new password
-                            sendClientMessage("0Please enter a new password: ");
-                            String password = acceptClientMessage();
-                            
-                            // create the account
-                            Account newAccount = new Account(username, password);
-                            try{
-                                BufferedWriter writer = new BufferedWriter(new FileWriter("Server/credentials.txt", true));
-                                writer.append(username + " " + password + "\n");
-                                writer.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+            // make corresponding response i.e., require user to provide username and password for further authentication
+            // dataOutputStream would be used to send the data to client side
+            return true;
+        }
 
-                            // auto-login the account
-                            yellowBook.put(username, newAccount);
-                            newAccount.login(password);
-                            userAccount = newAccount;
-                            onlineThreads.put(username, this);
-                            sendClientMessage("0Account created! You are logged in! Welcome to Skynett!\n");
-                            broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged in.\n");
-                        } else {
-                            sendClientMessage("1");
-                            break;
-                        }
-                    }
-                    
-                    // make corresponding response i.e., require user to provide username and password for further authentication
-                    // dataOutputStream would be used to send the data to client side
-
-                } else if (commands[0].equals("message")) {
-                    //System.out.println("[recv] message request from user - " + clientID);
-                    t.cancel();
-                    // check argument
-                    if (commands.length < 2) {
-                        sendClientMessage("Command usage: message receiver content\n");
-                        continue;
-                    }
-                    else if (commands.length <3) {
-                        sendClientMessage("Error: Message cannot be empty\n");
-                        continue;
-                    }
-                    String receiver = commands[1];
-                    String content = "";
-
-                    
-                    content = message.substring(commands[0].length() + commands[1].length() + 2);
-                    
-                    // check if the user exist
-                    Account act = yellowBook.get(receiver);
-                    if (act == null) {
-                        sendClientMessage("0Error. User \"" + receiver + "\" does not exist.\n");
-                    } else if (receiver.equals(userAccount.getUsername())) {
-                        sendClientMessage("0Error. Cannot send message to yourself.\n");
-                    } else {
-                        // check if blocked
-                        if (act.ifblocked(userAccount)) {
-                            sendClientMessage("0Sorry. Cannot send message to this account.\n");
-                        } else {
-                            // check if this user is online
-                            ClientThread ct = onlineThreads.get(receiver);
-                            if (ct == null) {
-                                // user currently not online, create message memo
-                                Message newMemo = new Message(userAccount.getUsername(), receiver, content);
-                                //System.out.println("Add " + newMemo.getContent() + " into the memo");
-                                // associate this memo with the receiver username
-                                List<Message> messages = memo.get(receiver);
-                                if (messages == null) {
-                                    messages = new ArrayList<>();
-                                    messages.add(newMemo);
-                                    memo.put(receiver, messages);
-                                } else {
-                                    messages.add(newMemo);
-                                }
-                            } else {
-                                ct.sendClientMessage("0" + userAccount.getUsername() + ": " + content + "\n");
-                            }
-                        }
-                    }
-            
-                } else if (commands[0].equals("logout")) {
-                    System.out.println("[recv] logout request from user - " + clientID);
-                    t.cancel();
-                    // log out the user/account
-                    userAccount.logout();
-                    onlineThreads.remove(userAccount.getUsername());
-                    //listenerChecklist.remove(clientPort);
-                    //stopListener();
-                    sendClientMessage("1You are logged out! Thank you for using Skynett!\n");
-                    broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged out.(1)\n");
-                    break;
-                } else if (commands[0].equals("whoelse")) {
-                    System.out.println("[recv] whoelse request from user - " + clientID);
-                    t.cancel();
-                    String nameList = "0";
-                    for (String user : onlineThreads.keySet()) {
-                        // check block
-                        if (!onlineThreads.get(user).getAccount().ifblocked(userAccount) && onlineThreads.get(user).getAccount() != userAccount) nameList += user + "\n";
-                    }
-                    sendClientMessage(nameList);
-                } else if (commands[0].equals("whoelsesince")) {
-                    System.out.println("[recv] whoelsesince request from user - " + clientID);
-                    t.cancel();
-                    if (commands.length < 2) sendClientMessage("Command usage: whoelsesince window_size\n");
-                    int period = Integer.parseInt(commands[1]);
-                    String nameList = "0";
-                    for (String user : onlineThreads.keySet()) {
-                        // check block
-                        Account targetAct = onlineThreads.get(user).getAccount();
-                        if (!targetAct.ifblocked(userAccount) && targetAct != userAccount && targetAct.isLoggedInWithin(period)) nameList += user + "\n";
-                    }
-                    sendClientMessage(nameList);
-                } else if (commands[0].equals("broadcast")) {
-                    System.out.println("[recv] broadcast request from user - " + clientID);
-                    t.cancel();
-                    if (commands.length < 2) {
-                        sendClientMessage("Command usage: broadcast content\n");
-                        continue;
-                    }
-                    String content = message.substring(commands[0].length() + 1);
-                    broadCast(userAccount, userAccount.getUsername() + ": " + content + "\n");
-                } else if (commands[0].equals("block")) {
-                    System.out.println("[recv] block request from user - " + clientID);
-                    t.cancel();
-                    if (commands.length < 2) {
-                        sendClientMessage("Command usage: block target_user\n");
-                        continue;
-                    }
-                    // check the username
-                    String username = message.substring(commands[0].length() + 1);
-
-                    Account targetAct = yellowBook.get(username);
-                    if (targetAct == null) {
-                        sendClientMessage("0User \"" + username + "\"does not exist.\n");
-                    } else if (targetAct == userAccount) {
-                        sendClientMessage("0Error. Can not block yourself.\n"); 
+        private boolean message(CommandLine line) {
+            //log(Log.Level.INFO, "[recv] message request");
+            String receiver = line.get(1);
+            String content = line.rest(2);
+
+            // check if the user exist
+            Account act = yellowBook.get(receiver);
+            if (act == null) {
+                sendClientMessage("0Error. User \"" + receiver + "\" does not exist.\n");
+            } else if (receiver.equals(userAccount.getUsername())) {
+                sendClientMessage("0Error. Cannot send message to yourself.\n");
+            } else {
+                // check if blocked
+                if (act.ifblocked(userAccount)) {
+                    sendClientMessage("0Sorry. Cannot send message to this account.\n");
+                } else {
+                    // check if this user is online, here or on another node
+                    ClientThread ct = onlineThreads.get(receiver);
+                    int node = ct == null ? cluster.locate(receiver) : -1;
+                    if (node >= 0) {
+                        cluster.chat(node, new Message(userAccount.getUsername(), receiver, content));
+                    } else if (ct == null && !cluster.isHome(receiver)) {
+                        // kept by the node the receiver is at home on
+                        cluster.memo(new Message(userAccount.getUsername(), receiver, content));
+                    } else if (ct == null) {
+                        // user currently not online, create message memo, the client hears if it does not make it to disk
+                        await(memoStore.store(new Message(userAccount.getUsername(), receiver, content)), (stored, error) -> {
+                            if (error == null) return;
+                            log(Log.Level.ERROR, "===== cannot store the memo for " + receiver + ", " + error.getMessage() + " =====");
+                            sendClientMessage("0Error. The message could not be stored, please try again later.\n");
+                        });
                     } else {
-                        userAccount.block(targetAct);
+                        ct.sendChatMessage(new Message(userAccount.getUsername(), receiver, content));
                     }
-                } else if (commands[0].equals("unblock")) {
-                    System.out.println("[recv] logout request from user - " + clientID);
-                    t.cancel();
-                    if (commands.length < 2) {
-                        sendClientMessage("Command usage: unblock target_user\n");
-                        continue;
-                    }
-                    // check the username
-                    String username = message.substring(commands[0].length() + 1);
-                    Account targetAct = yellowBook.get(username);
-                    if (targetAct == null) {
-                        sendClientMessage("0User \"" + username + "\" does not exist.\n");
-                    } else if (targetAct == userAccount) {
-                        sendClientMessage("0Error. Can not unblock yourself.\n"); 
-                    } else {
-                        userAccount.unblock(targetAct);
+                }
+            }
+            return true;
+        }
+
+        private boolean logout(CommandLine line) {
+            log(Log.Level.INFO, "[recv] logout request");
+            // the session may be ending already, handed over to another connection
+            if (!ending.compareAndSet(false, true)) return true;
+            try {
+                revokeToken();
+                // log out the user/account
+                userAccount.logout();
+                goOffline();
+                //listenerChecklist.remove(clientPort);
+                //stopListener();
+                sendClientMessage("1You are logged out! Thank you for using Skynett!\n");
+                broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged out.(1)\n");
+                clientAlive = false;
+                closeConnection();
+            } finally {
+                ended.complete(null);
+            }
+            return true;
+        }
+
+        private boolean whoelse(CommandLine line) {
+            log(Log.Level.INFO, "[recv] whoelse request");
+            int page = line.arguments() < 1 ? 1 : parseCount(line, 1);
+            if (page < 1) return false;
+            sendClientMessage("0" + presence.snapshot().list(0, userAccount, page, presencePageSize, "whoelse "));
+            return true;
+        }
+
+        private boolean whoelsesince(CommandLine line) {
+            log(Log.Level.INFO, "[recv] whoelsesince request");
+            int period = parseCount(line, 1);
+            int page = line.arguments() < 2 ? 1 : parseCount(line, 2);
+            if (period < 0 || page < 1) return false;
+            // the accounts that logged in within the window are the tail of the snapshot
+            PresenceIndex.Snapshot online = presence.snapshot();
+            int from = online.since(CoarseClock.millis() - period * 1000L);
+            sendClientMessage("0" + online.list(from, userAccount, page, presencePageSize, "whoelsesince " + period + " "));
+            return true;
+        }
+
+        private boolean broadcast(CommandLine line) {
+            log(Log.Level.INFO, "[recv] broadcast request");
+            broadCastChat(userAccount, line.rest(1));
+            return true;
+        }
+
+        private boolean block(CommandLine line) {
+            log(Log.Level.INFO, "[recv] block request");
+            // check the username
+            String username = line.rest(1);
+
+            Account targetAct = yellowBook.get(username);
+            if (targetAct == null) {
+                sendClientMessage("0User \"" + username + "\"does not exist.\n");
+            } else if (targetAct == userAccount) {
+                sendClientMessage("0Error. Can not block yourself.\n");
+            } else {
+                userAccount.block(targetAct);
+                cluster.block(userAccount.getUsername(), username, true);
+            }
+            return true;
+        }
+
+        private boolean unblock(CommandLine line) {
+            log(Log.Level.INFO, "[recv] unblock request");
+            // check the username
+            String username = line.rest(1);
+            Account targetAct = yellowBook.get(username);
+            if (targetAct == null) {
+                sendClientMessage("0User \"" + username + "\" does not exist.\n");
+            } else if (targetAct == userAccount) {
+                sendClientMessage("0Error. Can not unblock yourself.\n");
+            } else {
+                userAccount.unblock(targetAct);
+                cluster.block(userAccount.getUsername(), username, false);
+            }
+            return true;
+        }
+
+        private boolean memoack(CommandLine line) {
+            // the pages of a legacy client are delivered as they are written, an answer would be for the next page
+            if (!isBinary()) return true;
+            memoLock.lock();
+            try {
+                pageDelivered();
+            } finally {
+                memoLock.unlock();
+            }
+            return true;
+        }
+
+        // memo lock held, the client has the last page of offline messages, on to the next one
+        private void pageDelivered() {
+            if (memosInFlight == 0) return;
+            try {
+                memoStore.delivered(userAccount.getUsername(), memosInFlight);
+            } catch (IOException e) {
+                log(Log.Level.ERROR, "===== cannot record the memos as delivered, " + e.getMessage() + " =====");
+            }
+            memosInFlight = 0;
+            sendMemoPage();
+        }
+
+        // the page has been written out, a client on the legacy protocol never answers it with "memoack" so it counts
+        // as delivered now, a client on the frame protocol still has to acknowledge it
+        private void pageWritten(int page) {
+            if (!clientAlive || userAccount == null || isBinary()) return;
+            memoLock.lock();
+            try {
+                if (page == memoPage) pageDelivered();
+            } finally {
+                memoLock.unlock();
+            }
+        }
+
+        private boolean isBinary() {
+            return connection != null ? connection.isBinary() : wireFormat == WireFormat.BINARY;
+        }
+
+        private boolean help(CommandLine line) {
+            log(Log.Level.INFO, "[recv] help request");
+            return true;
+        }
+
+        private boolean startprivate(CommandLine line) {
+            log(Log.Level.INFO, "[recv] startprivate request");
+            // check the username
+            String username = line.rest(1);
+
+            Account targetAct = yellowBook.get(username);
+            if (targetAct == null) {
+                sendClientMessage("0User \"" + username + "\" does not exist.\n");
+            } else if (targetAct.ifblocked(userAccount)) {
+                sendClientMessage("0Sorry, cannot start private chat with this user.\n");
+            } else {
+                ClientThread th = onlineThreads.get(username);
+                int node = th == null ? cluster.locate(username) : -1;
+                if (node >= 0) {
+                    // the user is on another node, so are its answers
+                    cluster.invite(node, userAccount.getUsername(), username);
+                } else if (th == null) {
+                    sendClientMessage("0User \"" + username + "\" is offline.\n");
+                } else if (th == this) {
+                    sendClientMessage("0Can not start private chat with yourself\n");
+                } else {
+                    // send the user an invitation for private messaging, the answer comes back through the other user's messages
+                    th.invite(userAccount.getUsername(), this::sendFrame);
+                }
+            }
+            return true;
+        }
+
+        private boolean join(CommandLine line) {
+            log(Log.Level.INFO, "[recv] join request");
+            String name = line.get(1);
+            if (!ROOM_NAME.matcher(name).matches()) {
+                sendClientMessage("0Error. Room names are 1 to 32 letters, digits, '_' or '-'.\n");
+                return true;
+            }
+            ChatRoom room = rooms.join(name, userAccount.getId());
+            if (room == null) {
+                sendClientMessage("0You are already in room \"" + name + "\".\n");
+                return true;
+            }
+            joinedRooms.add(name);
+            sendClientMessage("0You joined room \"" + name + "\", " + room.size() + " member" + (room.size() == 1 ? "" : "s") + " now.\n");
+            publishToRoom(room, new OutboundMessage("0[" + name + "] System: " + userAccount.getUsername() + " has joined the room.\n", null));
+            return true;
+        }
+
+        private boolean leave(CommandLine line) {
+            log(Log.Level.INFO, "[recv] leave request");
+            String name = line.get(1);
+            if (!leaveRoom(name)) {
+                sendClientMessage("0Error. You are not in room \"" + name + "\".\n");
+                return true;
+            }
+            sendClientMessage("0You left room \"" + name + "\".\n");
+            return true;
+        }
+
+        private boolean say(CommandLine line) {
+            //log(Log.Level.INFO, "[recv] say request");
+            String name = line.get(1);
+            String content = line.rest(2);
+            ChatRoom room = rooms.get(name);
+            if (room == null || !room.isMember(userAccount.getId())) {
+                sendClientMessage("0Error. You are not in room \"" + name + "\".\n");
+                return true;
+            }
+            // whoever cannot keep up gets it as a memo, with the room in front of the content
+            String sender = userAccount.getUsername();
+            publishToRoom(room, new OutboundMessage(new Frame(Opcode.TEXT, "[" + name + "] " + sender + ": " + content + "\n"),
+                    new Message(sender, null, "[" + name + "] " + content)));
+            return true;
+        }
+
+        // take this client out of the room and tell the members left, false if it was not in it
+        private boolean leaveRoom(String name) {
+            if (!rooms.leave(name, userAccount.getId())) return false;
+            joinedRooms.remove(name);
+            ChatRoom room = rooms.get(name);
+            if (room != null) {
+                publishToRoom(room, new OutboundMessage("0[" + name + "] System: " + userAccount.getUsername() + " has left the room.\n", null));
+            }
+            return true;
+        }
+
+        private boolean stats(CommandLine line) {
+            log(Log.Level.INFO, "[recv] stats request");
+            if (!admins.contains(userAccount.getUsername())) {
+                sendClientMessage("0Error. Only administrators can see the server statistics.\n");
+            } else if (line.arguments() > 0) {
+                String username = line.rest(1);
+                if (yellowBook.get(username) == null) sendClientMessage("0User \"" + username + "\" does not exist.\n");
+                else sendClientMessage("0" + username + " has " + metrics.memoBacklogOf(username) + " offline messages waiting.\n");
+            } else {
+                sendClientMessage("0" + metrics.report());
+            }
+            return true;
+        }
+
+        // the login conversation, one step per answer of the client
+        private void continueLogin(String message) {
+            if (loginStep == LoginStep.USERNAME) {
+                loginName = message;
+        
+                // check if the username exist
+                Account act = yellowBook.get(loginName);
+                if (act != null) {
+                    // check password
+                    tryout = 3;
+                    loginStep = LoginStep.PASSWORD;
+                    sendClientMessage("0Password: ");
+                } 
+
+                // username does not exist, ask if to create new account
+                else {
+                    askToRegister();
+                }
+            } else if (loginStep == LoginStep.PASSWORD) {
+                // not even worth checking the password
+                if (loginAttempts.isBlocked(clientAddress)) {
+                    loginStep = null;
+                    sendClientMessage("1Too many failed logins from your address. Please try again later\n");
+                    clientExit();
+                    return;
+                }
+                Account act = yellowBook.get(loginName);
+                String username = loginName;
+                String password = message;
+                verify(() -> {
+                    int result = act.login(password);
+                    // store a plain text or outdated hash of the password in the current form
+                    if (result == 0) {
+                        String secret = act.upgrade(password);
+                        if (secret != null) yellowBook.update(username, secret);
                     }
-                } else if (commands[0].equals("help")) {
-                    System.out.println("[recv] help request from user - " + clientID);
-                    t.cancel();
-                    // check the username
-                } else if (commands[0].equals("startprivate")) {
-                    System.out.println("[recv] startprivate request from user - " + clientID);
-                    t.cancel();
-                    if (commands.length < 2) {
-                        sendClientMessage("Command usage: startprivate target_user\n");
-                        continue;
+                    return result;
+                }, result -> finishLogin(act, result == null ? 1 : result));
+            } else if (loginStep == LoginStep.REGISTER_CONFIRM) {
+                if (message.equals("y") || message.equals("Y")) {
+                    // start registering
+                    log(Log.Level.INFO, "===== registering a new account =====");
+                    String password = loginPassword;
+                    loginPassword = null;
+                    if (password != null) {
+                        // given with the login command already
+                        verify(() -> PasswordHasher.hash(password), this::finishRegistration);
+                        return;
                     }
-                    // check the username
-                    String username = message.substring(commands[0].length() + 1);
-
-                    Account targetAct = yellowBook.get(username);
-                    if (targetAct == null) {
-                        sendClientMessage("0User \"" + username + "\" does not exist.\n");
-                    } else if (targetAct.ifblocked(userAccount)) {
-                        sendClientMessage("0Sorry, cannot start private chat with this user.\n");
-                    } else {
-                        ClientThread th = onlineThreads.get(username);
-                        if (th == null) {
-                            sendClientMessage("0User \"" + username + "\" is offline.\n");
-                        } if (th == this) {
-                            sendClientMessage("0Can not start private chat with yourself\n");
-                        } else {
-                            // send the user an invitation for private messaging
-                            String host = null;
-                            String port = null;
-                            String confirm = th.privateCall(userAccount.getUsername(), host, port);
-                            if (!confirm.equals("-1")) {
-                                // send back client '2' so that client knows that the other end has accepted the calling request
-                                System.out.println("sending confirmation with " + th.getClientAddress() +" "+ confirm);
-                                sendClientMessage("2 " + userAccount.getUsername() + " " + username + " " + th.getClientAddress() + " " + confirm);
-                            } else {
-                                sendClientMessage("0" + username + " has rejected the private chat\n");
-                            }
-                        }
+                    // get the new password
+                    loginStep = LoginStep.NEW_PASSWORD;
+                    sendClientMessage("0Please enter a new password: ");
+                } else {
+                    loginStep = null;
+                    loginPassword = null;
+                    sendClientMessage("1");
+                    clientExit();
+                }
+            } else if (loginStep == LoginStep.NEW_PASSWORD) {
+                String password = message;
+                verify(() -> PasswordHasher.hash(password), this::finishRegistration);
+            }
+        }
+
+        private void askToRegister() {
+            loginStep = LoginStep.REGISTER_CONFIRM;
+            sendClientMessage("0Username does not exist, do you want to create it?(y/n): ");
+        }
+
+        /**
+         * run the expensive part of a login step on the verifier pool, then go on with its result on this client,
+         * null if it failed. A client turned away by a full pool is told so and disconnected, its tries are not used up.
+         */
+        private <T> void verify(Callable<T> task, Consumer<T> then) {
+            CompletableFuture<T> result;
+            long start = System.nanoTime();
+            try {
+                result = verifier.submit(() -> {
+                    try {
+                        return task.call();
+                    } finally {
+                        metrics.passwordVerified(System.nanoTime() - start);
                     }
-                } else if (commands[0].equals("private")) {
-                    t.cancel();
-                } else if (commands[0].equals("stopprivate")) {
-                    t.cancel();
-                } else sendClientMessage("0Command \"" + commands[0] + "\" does not exist, enter \"help\" to list all supported commands.\n");
+                });
+            } catch (RejectedExecutionException e) {
+                log(Log.Level.WARN, "===== Too many logins in progress, login turned away =====");
+                metrics.loginTurnedAway();
+                loginStep = null;
+                sendClientMessage("1Server is busy, please try again later.\n");
+                clientExit();
+                return;
+            }
+            loginStep = LoginStep.VERIFYING;
+            await(result, (value, error) -> {
+                if (error != null) log(Log.Level.ERROR, "===== password check failed =====", error);
+                then.accept(value);
+            });
+        }
+
+        /**
+         * go on with the result on this client once it is there, with the error instead if it failed
+         */
+        private <T> void await(CompletableFuture<T> result, BiConsumer<T, Throwable> then) {
+            if (connection == null) {
+                // this client has a thread of its own, it may as well wait
+                T value = null;
+                Throwable error = null;
+                try {
+                    value = result.join();
+                } catch (CompletionException e) {
+                    error = e.getCause();
+                }
+                then.accept(value, error);
+            } else {
+                // back onto the connection, after whatever it received in the meantime
+                result.whenComplete((value, error) -> connection.execute(
+                        () -> then.accept(value, error instanceof CompletionException ? error.getCause() : error)));
+            }
+        }
+
+        // run what another thread has found due for this client, on the worker of the connection when the event loops
+        // serve it, like everything else the session does, a client with a thread of its own takes it as it comes
+        private void onConnection(Runnable task) {
+            if (connection != null) connection.execute(task);
+            else task.run();
+        }
+
+        // the answer to the password, see Account.login for the results
+        private void finishLogin(Account act, int result) {
+            loginStep = LoginStep.PASSWORD;
+            if (!clientAlive) {
+                // the client went away while the password was checked
+                if (result == 0) act.logout();
+                return;
+            }
+            // logged in on another node of the cluster
+            if (result == 0 && cluster.locate(act.getUsername()) >= 0) {
+                act.logout();
+                result = 2;
+            }
+            if (result == 0) {
+                loginStep = null;
+                userAccount = act;
+                // a password login starts over, whatever tokens the user was given before are no good any more
+                sessionTokens.revokeAll(act.getUsername());
+                goOnline();
+                issueToken();
+                sendClientMessage("0Login successful! Welcome to Skynett!\nPlease enter command below:\n");
+
+                // push the memo if there is, a summary first, then the messages a page at a time
+                sendMemoSummary();
+                sendMemoPage();
+                // the home node of the user sends the ones it keeps as chat messages
+                if (!cluster.isHome(act.getUsername())) cluster.claim(act.getUsername());
+
+                broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged in.\n");
+            } else if (result == 1) {
+                tryout--;
+                metrics.loginFailed();
+                if (loginAttempts.fail(clientAddress)) {
+                    loginStep = null;
+                    metrics.addressBlocked();
+                    log(Log.Level.WARN, "===== Too many failed logins from the address, blocked for " + lockDuration + " seconds =====");
+                    sendClientMessage("1Too many failed logins from your address. Please try again later\n");
+                    clientExit();
+                } else if (tryout == 0) {
+                    loginStep = null;
+                    sendClientMessage("1Invalid Password. Your account is locked for " + lockDuration + " seconds. Please try again later\n");
+                    // lock the account
+                    act.noticeLocked(lockDuration);
+                    metrics.accountLocked();
+                    //System.out.println("User with userid " + clientID + " is locked due to multiple loggin failure.");
+                    clientExit();
+                } else {
+                    sendClientMessage("0Password incorrect. You have " + tryout + " more chances to try.\n");
+                    sendClientMessage("0Password: ");
+                }
+            } else if (result == 2) {
+                loginStep = null;
+                sendClientMessage("1This account is already logged in.\n");
+                clientExit();
+            } else if (result == 3) {
+                loginStep = null;
+                sendClientMessage("1This account has been blocked due to multiple login failures. Please try again later\n");
+                clientExit();
+            }
+        }
+
+        // create the account with the hash of its new password
+        private void finishRegistration(String secret) {
+            loginStep = null;
+            if (!clientAlive) return;
+            if (secret == null) {
+                sendClientMessage("1The account could not be created, please try again later.\n");
+                clientExit();
+                return;
+            }
+
+            // create the account, it is there once its line is on disk
+            loginStep = LoginStep.VERIFYING;
+            await(yellowBook.register(loginName, secret), (account, error) -> accountCreated(account, error, secret));
+        }
+
+        // the account has been written, or not, see CredentialStore.register
+        private void accountCreated(Account newAccount, Throwable error, String secret) {
+            loginStep = null;
+            if (error == null && newAccount != null) cluster.registered(loginName, secret);
+            if (!clientAlive) return;
+            if (error != null) {
+                log(Log.Level.ERROR, "===== the account could not be created =====", error);
+                sendClientMessage("1The account could not be created, please try again later.\n");
+                clientExit();
+                return;
+            }
+            if (newAccount == null) {
+                sendClientMessage("1Username \"" + loginName + "\" has just been taken, please try again.\n");
+                clientExit();
+                return;
+            }
+
+            // auto-login the account, the password has just been set
+            newAccount.enter(true);
+            userAccount = newAccount;
+            goOnline();
+            issueToken();
+            sendClientMessage("0Account created! You are logged in! Welcome to Skynett!\n");
+            broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged in.\n");
+        }
+
+        // a login in a single command is answered with the token to resume the session with
+        private void issueToken() {
+            if (!tokenWanted) return;
+            String username = userAccount.getUsername();
+            sessionToken = sessionTokens.issue(username);
+            sendFrame(new Frame(Opcode.SESSION, new String[] { sessionToken, username, String.valueOf(sessionTokens.getWindowSeconds()) }, ""));
+        }
+
+        // the session can no longer be resumed, e.g. the user has logged out
+        private void revokeToken() {
+            String token = sessionToken;
+            sessionToken = null;
+            if (token != null) sessionTokens.revoke(token);
+        }
+
+        /**
+         * take up the session of the token again, lost by the connection it was on. Nobody is told the user has
+         * logged in again, nor that it has logged out if the notice of that is still held back.
+         */
+        private boolean resume(CommandLine line) {
+            log(Log.Level.INFO, "[recv] resume request");
+            if (userAccount != null) {
+                sendClientMessage("0You are already logged in.\n");
+                return true;
+            }
+            String username = sessionTokens.redeem(line.get(1));
+            Account act = username == null ? null : yellowBook.get(username);
+            if (act == null) {
+                sendClientMessage("0Session expired, please login again.\n");
+                return true;
+            }
+            if (cluster.locate(username) >= 0) {
+                sendClientMessage("1This account is already logged in.\n");
+                clientExit();
+                return true;
+            }
+            // the connection the session was on may not have noticed it is gone yet, it is ended first
+            ClientThread previous = onlineThreads.get(username);
+            if (previous == null) {
+                finishResume(act);
+                return true;
+            }
+            loginStep = LoginStep.VERIFYING;
+            await(previous.handOver(), (done, error) -> {
+                if (error != null) log(Log.Level.WARN, "===== the lost session is still ending, resuming anyway =====");
+                loginStep = null;
+                if (clientAlive) finishResume(act);
+            });
+            return true;
+        }
+
+        // take the session up once nothing else has it
+        private void finishResume(Account act) {
+            String username = act.getUsername();
+            if (act.resume() == 3) {
+                sendClientMessage("1This account has been blocked due to multiple login failures. Please try again later\n");
+                clientExit();
+                return;
+            }
+            userAccount = act;
+            tokenWanted = true;
+            goOnline();
+            issueToken();
+            metrics.sessionResumed();
+            log(Log.Level.INFO, "===== session resumed =====");
+            sendClientMessage("0Session resumed! Welcome back to Skynett!\nPlease enter command below:\n");
+            sendMemoSummary();
+            sendMemoPage();
+            if (!cluster.isHome(username)) cluster.claim(username);
+        }
+
+        // the session is being resumed on another connection, end this one and leave the user logged in. The future
+        // completes once it has ended, by this call or by its own thread if that was already ending it, the resumed
+        // session must not be torn down with it.
+        private CompletableFuture<Void> handOver() {
+            handedOver = true;
+            sendClientMessage("1Your session has been resumed on another connection.\n");
+            clientExit();
+            return ended.copy().orTimeout(HAND_OVER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        // a line of the log about this client, with its user and the command being handled as fields
+        private void log(Log.Level level, String message) {
+            log(level, message, null);
+        }
+
+        private void log(Log.Level level, String message, Throwable error) {
+            Log.log(level, clientID, userAccount != null ? userAccount.getUsername() : loginName, command, message, error);
+        }
+
+        // the number given as an argument, -1 if it is not a non-negative number
+        private static int parseCount(CommandLine line, int index) {
+            try {
+                return Math.max(-1, Integer.parseInt(line.get(index)));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // how many offline messages are waiting, by sender
+        private void sendMemoSummary() {
+            Map<String, Integer> unread = memoStore.unreadBySender(userAccount.getUsername());
+            if (unread.isEmpty()) return;
+            int total = 0;
+            StringBuilder senders = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : unread.entrySet()) {
+                total += entry.getValue();
+                senders.append(senders.length() == 0 ? "" : ", ").append(entry.getKey()).append(" ").append(entry.getValue());
+            }
+            sendClientMessage("0You have " + total + " unread message" + (total == 1 ? "" : "s") + " (" + senders + ").\n");
+        }
+
+        // send the next page of offline messages, they stay pending until the client answers the page with "memoack",
+        // or on the legacy protocol until the page is written, so that whatever has not been delivered is sent again at
+        // the next login
+        private void sendMemoPage() {
+            memoLock.lock();
+            try {
+                String username = userAccount.getUsername();
+                List<Message> page = memoStore.pending(username, memoPageSize);
+                memosInFlight = page.size();
+                int number = ++memoPage;
+                if (page.isEmpty()) return;
+                for (Message m : page) {
+                    sendClientMessage("0" + m.getSender() + ": " + m.getContent() + "\n");
+                }
+                int left = memoStore.pendingCount(username) - page.size();
+                Frame end = new Frame(Opcode.MEMO_PAGE, new String[] { String.valueOf(page.size()), String.valueOf(left) }, "");
+                msgSender.sendMessage(new OutboundMessage(end, null).whenWritten(() -> onConnection(() -> pageWritten(number))));
+            } finally {
+                memoLock.unlock();
             }
         }
 
@@ -395,65 +1067,227 @@ public class TCPServer {
          * send a specific message to all the online users over their message listeners except those who have blocked the broadcaster
          */
         public void broadCast(Account act, String content) {
-            for (ClientThread th : onlineThreads.values()) {
-                Account thisAct = th.getAccount();
-                if (!thisAct.ifblocked(userAccount) && thisAct != act) {
-                    th.sendClientMessage("0" + content);
-                }
-            }
+            publish(act, new OutboundMessage("0" + content, null));
+            cluster.notice(act.getUsername(), content);
+        }
+
+
+        /** 
+         * send a chat message of another user to all the online users except those who have blocked the broadcaster
+         */
+        public void broadCastChat(Account act, String content) {
+            publish(act, chatMessage(act, content));
+            cluster.broadcast(act.getUsername(), content);
+        }
+
+        // one message for everyone, whoever cannot keep up gets it as a memo addressed to them
+        private static OutboundMessage chatMessage(Account act, String content) {
+            return new OutboundMessage(new Frame(Opcode.TEXT, act.getUsername() + ": " + content + "\n"),
+                    new Message(act.getUsername(), null, content));
+        }
+
+        // queue the message for every online user of this node but the sender and those who have blocked the sender
+        private static void publish(Account act, OutboundMessage message) {
+            CompactBitmap recipients = sessions.ids().andNot(Account.blocks().blockedBy(act.getId())).without(act.getId());
+            fanOut.publish(recipients, id -> deliver(id, message));
+        }
+
+        // the same for the members of the room, the cost is that of the room rather than of everyone online
+        private void publishToRoom(ChatRoom room, OutboundMessage message) {
+            room.publish(fanOut, userAccount.getId(), id -> deliver(id, message));
         }
 
+        private static void deliver(int id, OutboundMessage message) {
+            ClientThread th = sessions.get(id);
+            if (th != null) th.msgSender.sendMessage(message);
+        }
+
+        private void goOnline() {
+            onlineThreads.put(userAccount.getUsername(), this);
+            // a resumed session keeps its place, the time of its login
+            presence.join(userAccount, userAccount.getLastLogin());
+            sessions.set(userAccount.getId(), this);
+            cluster.online(userAccount.getUsername(), userAccount.getLastLogin());
+        }
+
+        // only if this client is still the one logged in, the account may have logged in again in the meantime
+        private void goOffline() {
+            for (String name : joinedRooms) leaveRoom(name);
+            if (onlineThreads.remove(userAccount.getUsername(), this)) {
+                presence.leave(userAccount);
+                cluster.offline(userAccount.getUsername());
+            }
+            sessions.remove(userAccount.getId(), this);
+        }
 
         public void sendClientMessage(String content) {
-            msgSender.sendMessage(content);
+            msgSender.sendMessage(new OutboundMessage(content, null));
+        }
+
+        // a chat message this client could not take in time, kept as a memo for its next login
+        private void spill(Message m) {
+            addMemo(m.getReceiver() != null ? m : new Message(m.getSender(), userAccount.getUsername(), m.getContent()));
+        }
+
+        public void sendFrame(Frame frame) {
+            msgSender.sendMessage(new OutboundMessage(frame, null));
+        }
+
+        // a chat message of another user, kept as a memo instead if this client cannot keep up
+        public void sendChatMessage(Message m) {
+            msgSender.sendMessage(new OutboundMessage("0" + m.getSender() + ": " + m.getContent() + "\n", m));
+        }
+
+        /**
+         * invite this client to a private chat with the inviter, the invitations are asked one at a time
+         */
+        public void invite(String inviterName, Consumer<Frame> inviter) {
+            PrivateInvitation invitation = new PrivateInvitation(inviterName, inviter);
+            invitationLock.lock();
+            try {
+                invitations.add(invitation);
+                invitation.timeout = inactivityWheel.register(privateTimeout * 1000L, () -> onConnection(() -> expireInvitation(invitation)));
+                if (invitations.size() == 1) askInvitation(invitation);
+            } finally {
+                invitationLock.unlock();
+            }
         }
 
-        // return the port number of the other end, -1 if rejected
-        public String privateCall(String username, String host, String port) {
-            // set the messaging mode to answerMode
+        // send the invitation to the client, the next message of the client is the answer
+        private void askInvitation(PrivateInvitation invitation) {
+            log(Log.Level.DEBUG, "try to send invitation");
             answerMode = true;
-            System.out.println("try to send invitation");
-
-            // send the confirmation/invitation
-            sendClientMessage("3System: " + username + " wants to have a private chat with you. Do you accept?(y/n): ");
-
-            // wait for user to give the answer
-            while (answer == null) {
-                System.out.println("waiting for acception");
-            }
-            System.out.println(answer);
-            String confirm = answer;
-            answer = null;
-            if (confirm.equals("y")) {
-                // find an available port number
-                answerMode = true;
-                sendClientMessage("4" + " " + userAccount.getUsername() + " " + username);
-                System.out.println("try to obtain the port number");
-                while (answer == null) {
-                    System.out.println("waiting for port number");
+            sendClientMessage("3System: " + invitation.inviterName + " wants to have a private chat with you. Do you accept?(y/n): ");
+        }
+
+        // the client answered the invitation it is being asked, first whether it accepts, then the port it listens on
+        private void answerInvitation(String answer) {
+            log(Log.Level.DEBUG, "invitation answered: " + answer);
+            PrivateInvitation invitation;
+            Frame reply = null;
+            invitationLock.lock();
+            try {
+                invitation = invitations.peek();
+                if (invitation == null) return;
+                String inviterName = invitation.inviterName;
+                if (invitation.state == InvitationState.AWAITING_ANSWER) {
+                    if (answer.equals("y")) {
+                        // find an available port number
+                        invitation.state = InvitationState.AWAITING_PORT;
+                        answerMode = true;
+                        log(Log.Level.DEBUG, "try to obtain the port number");
+                        sendFrame(new Frame(Opcode.PRIVATE_LISTEN, new String[] { userAccount.getUsername(), inviterName }, ""));
+                    } else {
+                        finishInvitation(invitation);
+                        reply = new Frame(Opcode.TEXT, userAccount.getUsername() + " has rejected the private chat\n");
+                    }
+                } else if (invitation.state == InvitationState.AWAITING_PORT) {
+                    finishInvitation(invitation);
+                    // send back client '2' so that client knows that the other end has accepted the calling request
+                    log(Log.Level.DEBUG, "sending confirmation with " + getClientAddress() + " " + answer);
+                    reply = new Frame(Opcode.PRIVATE_ACCEPTED, new String[] { inviterName, userAccount.getUsername(), getClientAddress(), answer }, "");
                 }
-                System.out.println(answer);
-                String portNum = answer;
-                answer = null;
-                return portNum;
-            } else {
-                return "-1";
+            } finally {
+                invitationLock.unlock();
+            }
+            // the inviter is told outside of the lock, as telling it may make it leave and drop its own invitations
+            if (reply != null) invitation.inviter.accept(reply);
+        }
+
+        // the invitation is no longer outstanding, ask the next one if there is
+        private void finishInvitation(PrivateInvitation invitation) {
+            invitation.state = InvitationState.DONE;
+            inactivityWheel.cancel(invitation.timeout);
+            boolean wasAsked = invitations.peek() == invitation;
+            invitations.remove(invitation);
+            if (wasAsked) {
+                answerMode = false;
+                PrivateInvitation next = invitations.peek();
+                if (next != null && clientAlive) askInvitation(next);
+            }
+        }
+
+        // called by the inactivity wheel when an invitation has not been answered in time
+        private void expireInvitation(PrivateInvitation invitation) {
+            invitationLock.lock();
+            try {
+                if (invitation.state == InvitationState.DONE) return;
+                if (invitations.peek() == invitation) sendClientMessage("0System: The private chat invitation from " + invitation.inviterName + " has expired.\n");
+                finishInvitation(invitation);
+            } finally {
+                invitationLock.unlock();
+            }
+            invitation.tellInviter("0" + userAccount.getUsername() + " did not answer the private chat invitation in time.\n");
+        }
+
+        // the client is leaving, none of its invitations can be answered any more
+        private void dropInvitations() {
+            List<PrivateInvitation> dropped = new ArrayList<>();
+            invitationLock.lock();
+            try {
+                PrivateInvitation invitation;
+                while ((invitation = invitations.poll()) != null) {
+                    invitation.state = InvitationState.DONE;
+                    inactivityWheel.cancel(invitation.timeout);
+                    dropped.add(invitation);
+                }
+            } finally {
+                invitationLock.unlock();
+            }
+            for (PrivateInvitation invitation : dropped) {
+                invitation.tellInviter("0User \"" + userAccount.getUsername() + "\" is offline.\n");
             }
         }
 
         public String acceptClientMessage() {
-            try { 
-                String content = (String) dataInputStream.readUTF();
-                return content;
+            try {
+                if (wireFormat == null) return negotiate();
+                if (wireFormat == WireFormat.LEGACY) return dataInputStream.readUTF();
+                Frame frame = Frame.read(dataInputStream);
+                if (frame.getOpcode() == Opcode.HELLO) hello(frame);
+                // nothing but commands and hellos is expected from the client
+                return frame.getOpcode() == Opcode.COMMAND ? frame.getText() : null;
             } catch (EOFException e) {
-                System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                log(Log.Level.INFO, "===== the user disconnected =====");
                 clientExit();
             } catch (IOException e) {
-                System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                log(Log.Level.INFO, "===== the user disconnected =====");
                 clientExit();
             } return "";
         }
 
+        // the features the client asks for, once only as the frames compressed so far are the history of the next ones
+        private void hello(Frame frame) {
+            if (deflater != null) return;
+            deflater = Compression.accept(frame);
+            sendFrame(Compression.reply(deflater));
+        }
+
+        // tell the protocol of the client from its first bytes, returns the first command of a legacy client
+        private String negotiate() throws IOException {
+            byte[] head = new byte[WireFormat.HELLO_SIZE];
+            int read = 0;
+            WireFormat format = null;
+            while (format == null) {
+                head[read++] = dataInputStream.readByte();
+                format = WireFormat.detect(ByteBuffer.wrap(head, 0, read));
+            }
+            wireFormat = format;
+            if (format == WireFormat.BINARY) {
+                sendFrame(WireFormat.helloReply());
+                return acceptClientMessage();
+            }
+
+            // the bytes read so far are the start of the first writeUTF frame
+            if (read < UtfFrameCodec.HEADER_SIZE) head[read++] = dataInputStream.readByte();
+            int length = ((head[0] & 0xFF) << 8) | (head[1] & 0xFF);
+            byte[] first = new byte[length];
+            int already = read - UtfFrameCodec.HEADER_SIZE;
+            System.arraycopy(head, UtfFrameCodec.HEADER_SIZE, first, 0, already);
+            dataInputStream.readFully(first, already, length - already);
+            return UtfFrameCodec.decode(first, 0, length);
+        }
+
         public Account getAccount() {
             return userAccount;
         }
@@ -461,29 +1295,63 @@ public class TCPServer {
         public void setupIO() {
             try {
                 dataInputStream = new DataInputStream(clientSocket.getInputStream());
-                dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
+                // buffered so that the sender writes every pending message with a single flush
+                dataOutputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
             } catch (EOFException e) {
-                System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                log(Log.Level.INFO, "===== the user disconnected =====");
                 clientExit();
             } catch (IOException e) {
-                System.out.println("===== the user disconnected, user - " + clientID + "=====");
+                log(Log.Level.INFO, "===== the user disconnected =====");
                 clientExit();
             }
         }
 
         public void clientExit() {
-            if (clientAlive) {
+            // the connection, a timeout and a resume elsewhere can all end the session at once, only one cleans up
+            if (clientAlive && ending.compareAndSet(false, true)) {
                 clientAlive = false;
-                cleanUp();
+                try {
+                    cleanUp();
+                } finally {
+                    ended.complete(null);
+                }
             }
         }
 
         public void cleanUp() {
-            System.out.println("[recv] logout request from user - " + clientID);
-            // log out the user/account
-            userAccount.logout();
-            onlineThreads.remove(userAccount.getUsername());
-            broadCast(userAccount, "System: " + userAccount.getUsername() + " has logged out.\n");
+            // nothing to log out if the client never finished logging in
+            if (userAccount != null) {
+                dropInvitations();
+                if (handedOver) {
+                    // the user stays logged in, on the connection that has taken the session up
+                    log(Log.Level.INFO, "===== session handed over =====");
+                    goOffline();
+                } else {
+                    log(Log.Level.INFO, "===== logging out =====");
+                    // log out the user/account
+                    userAccount.logout();
+                    goOffline();
+                    Account act = userAccount;
+                    String token = sessionToken;
+                    if (token == null) {
+                        broadCast(act, "System: " + act.getUsername() + " has logged out.\n");
+                    } else {
+                        // the others only hear of it if the session is not resumed in time, nor logged in again
+                        sessionTokens.release(token, () -> {
+                            if (!act.isOnline() && cluster.locate(act.getUsername()) < 0) {
+                                broadCast(act, "System: " + act.getUsername() + " has logged out.\n");
+                            }
+                        });
+                    }
+                }
+            }
+            closeConnection();
+        }
+
+        // close the connection to the client, after everything already sent has been written out
+        private void closeConnection() {
+            inactivityWheel.cancel(inactivity);
+            msgSender.close();
         }
 
         public Boolean isClientAlive() {
@@ -502,19 +1370,166 @@ public class TCPServer {
             return clientPort;
         }
 
-        public Timer startTimer() {
-            TimerTask task = new TimerTask() {
-                @Override
-                public void run() {
-                    System.out.println("[recv] logout request from user - " + clientID);
-                    // log out the user/account
-                    sendClientMessage("1Timeout, exiting client...\n");
-                    clientExit();
-                }
-            };
-            Timer activeTimer = new Timer(true);
-            activeTimer.schedule(task, inactiveThres * 1000);
-            return activeTimer;
+        // called by the inactivity wheel once the client has been inactive for too long
+        private void timeout() {
+            log(Log.Level.INFO, "===== the user has been inactive for too long =====");
+            revokeToken();
+            // log out the user/account
+            sendClientMessage("1Timeout, exiting client...\n");
+            clientExit();
+        }
+    }
+
+    // the gauges of the metrics, worked out from the server state when asked for
+    private static class ServerGauges implements ServerMetrics.Gauges {
+
+        @Override
+        public int onlineSessions() {
+            return sessions.ids().cardinality();
+        }
+
+        @Override
+        public long memoBacklog() {
+            return memoStore.pendingCount();
+        }
+
+        @Override
+        public int memoBacklog(String username) {
+            return memoStore.pendingCount(username);
+        }
+
+        @Override
+        public long outboundQueueDepth() {
+            long[] depth = new long[1];
+            sessions.ids().forEach(id -> {
+                ClientThread th = sessions.get(id);
+                if (th != null) depth[0] += th.outbound.size();
+            });
+            return depth[0];
+        }
+
+        @Override
+        public int deepestOutboundQueue() {
+            int[] deepest = new int[1];
+            sessions.ids().forEach(id -> {
+                ClientThread th = sessions.get(id);
+                if (th != null) deepest[0] = Math.max(deepest[0], th.outbound.size());
+            });
+            return deepest[0];
+        }
+    }
+
+    // what this node does for the other nodes of the cluster
+    private static class ClusterNode implements Cluster.Handler {
+
+        @Override
+        public void online(String username, long loginTime) {
+            Account act = yellowBook.get(username);
+            if (act != null) presence.join(act, loginTime);
+        }
+
+        @Override
+        public void offline(String username) {
+            Account act = yellowBook.get(username);
+            // unless the user has logged in here in the meantime
+            if (act != null && !onlineThreads.containsKey(username)) presence.leave(act);
+        }
+
+        @Override
+        public void chat(Message m) {
+            ClientThread th = onlineThreads.get(m.getReceiver());
+            if (th != null) th.sendChatMessage(m);
+            else addMemo(m);
+        }
+
+        @Override
+        public void frame(String receiver, Frame frame) {
+            ClientThread th = onlineThreads.get(receiver);
+            if (th != null) th.sendFrame(frame);
+        }
+
+        @Override
+        public void broadcast(String sender, String content, boolean notice) {
+            Account act = yellowBook.get(sender);
+            if (act == null) return;
+            ClientThread.publish(act, notice ? new OutboundMessage("0" + content, null) : ClientThread.chatMessage(act, content));
+        }
+
+        @Override
+        public void invite(int node, String inviter, String invitee) {
+            Consumer<Frame> reply = frame -> cluster.frame(node, inviter, frame);
+            ClientThread th = onlineThreads.get(invitee);
+            if (th == null) reply.accept(Frame.fromLegacy("0User \"" + invitee + "\" is offline.\n"));
+            else th.invite(inviter, reply);
+        }
+
+        @Override
+        public void block(String blocker, String blocked, boolean block) {
+            Account from = yellowBook.get(blocker);
+            Account to = yellowBook.get(blocked);
+            if (from == null || to == null) return;
+            if (block) from.block(to);
+            else from.unblock(to);
+        }
+
+        @Override
+        public void registered(String username, String secret) {
+            yellowBook.register(username, secret).whenComplete((account, error) -> {
+                if (error != null) Log.error("===== the account " + username + " of another node could not be created =====", error);
+            });
+        }
+
+        // the page of offline messages on its way to the node a user at home here is logged in on
+        private static class Claim {
+            private final int node;
+            private final int count;
+
+            private Claim(int node, int count) {
+                this.node = node;
+                this.count = count;
+            }
+        }
+
+        // by username, a page at a time, replaced if the user claims again before the page is received
+        private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+
+        @Override
+        public void claim(int node, String username) {
+            // the next page, delivered once the node has it, sent again at the next claim if it never gets there
+            List<Message> page = memoStore.pending(username, memoPageSize);
+            if (page.isEmpty()) {
+                claims.remove(username);
+                return;
+            }
+            claims.put(username, new Claim(node, page.size()));
+            for (Message m : page) cluster.chat(node, m);
+            cluster.page(node, username, page.size());
+        }
+
+        @Override
+        public void received(int node, String username, int count) {
+            Claim claim = claims.get(username);
+            if (claim == null || claim.node != node || claim.count != count || !claims.remove(username, claim)) return;
+            try {
+                memoStore.delivered(username, count);
+            } catch (IOException e) {
+                Log.error("===== cannot record the memos of " + username + " as delivered, " + e.getMessage() + " =====", null);
+                return;
+            }
+            claim(node, username);
+        }
+    }
+
+    // keep a message for a user until the user logs in, on the home node of the user
+    static void addMemo(Message m) {
+        if (!cluster.isHome(m.getReceiver())) {
+            cluster.memo(m);
+            return;
+        }
+        try {
+            memoStore.append(m);
+        } catch (IOException e) {
+            Log.error("===== memo for " + m.getReceiver() + " lost, " + e.getMessage() + " =====", null);
         }
     }
 
@@ -533,29 +1548,104 @@ public class TCPServer {
         // inactive threshold
         inactiveThres = Integer.parseInt(args[2]);
 
-        // define server socket with the input port number, by default the host would be localhost i.e., 127.0.0.1
-        serverSocket = new ServerSocket(serverPort);
+        // "-Dskynett.log.level=debug|info|warn|error" and up is logged, the same message at most "-Dskynett.log.burst=N"
+        // times a second, to standard output or to "-Dskynett.log.file=path", rotated every "-Dskynett.log.size=N" MB
+        // keeping "-Dskynett.log.files=N" older files
+        String logFile = System.getProperty("skynett.log.file");
+        Log.configure(Log.Level.valueOf(System.getProperty("skynett.log.level", "info").toUpperCase()),
+                Integer.getInteger("skynett.log.burst", 50), logFile == null ? null : new File(logFile),
+                (long) Integer.getInteger("skynett.log.size", 64) << 20, Integer.getInteger("skynett.log.files", 5));
+
+        // ticks every 100 ms, one revolution covers about 100 seconds
+        inactivityWheel = new InactivityWheel(100, 1024);
+        inactivityWheel.start();
+
+        // "-Dskynett.outbound.capacity=N" and "-Dskynett.outbound.policy=drop_oldest|disconnect|spill" for slow clients
+        outboundCapacity = Integer.getInteger("skynett.outbound.capacity", 1024);
+        slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(System.getProperty("skynett.outbound.policy", "spill").toUpperCase());
+
+        // "-Dskynett.fanout.lanes=N" threads deliver the broadcasts in batches of "-Dskynett.fanout.batch=N" recipients,
+        // their latency is reported every "-Dskynett.fanout.report=N" seconds
+        fanOut = new FanOut(Integer.getInteger("skynett.fanout.lanes", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("skynett.fanout.batch", 256), Integer.getInteger("skynett.fanout.report", 60) * 1000L);
+
+        // passwords are hashed with "-Dskynett.kdf.iterations=N" rounds of PBKDF2 on "-Dskynett.kdf.threads=N" threads,
+        // with at most "-Dskynett.kdf.queue=N" logins waiting for them, further logins are turned away
+        PasswordHasher.configure(Integer.getInteger("skynett.kdf.iterations", 120_000));
+        verifier = new VerifierPool(Integer.getInteger("skynett.kdf.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("skynett.kdf.queue", 64));
+
+        // binary clients may ask for their frames to be compressed, unless "-Dskynett.deflate=off", at deflate level
+        // "-Dskynett.deflate.level=N" for the frames of at least "-Dskynett.deflate.threshold=N" bytes
+        Compression.configure(!"off".equals(System.getProperty("skynett.deflate")),
+                Integer.getInteger("skynett.deflate.level", 6), Integer.getInteger("skynett.deflate.threshold", 64));
+
+        // "-Dskynett.login.failures=N" failed logins from one address block it for the lock period
+        loginAttempts = new LoginAttempts(Integer.getInteger("skynett.login.failures", 10), lockDuration * 1000L);
+
+        // a login in a single command gets a token for resuming the session within "-Dskynett.session.window=N"
+        // seconds of losing its connection, 0 for no tokens. Until then the others are not told the user has left.
+        sessionTokens = new SessionTokens(inactivityWheel, Integer.getInteger("skynett.session.window", 30) * 1000L);
+
+        // "-Dskynett.presence.page=N" names at a time in the answers to whoelse and whoelsesince
+        presencePageSize = Integer.getInteger("skynett.presence.page", 100);
+
+        // "-Dskynett.private.timeout=N" seconds for a user to answer a private chat invitation
+        privateTimeout = Integer.getInteger("skynett.private.timeout", 30);
+
+        // "-Dskynett.threads=virtual" runs the client threads on virtual threads
+        ServerThreads.configure(System.getProperty("skynett.threads", "platform"));
 
-        // fetch all the existing users from credentials.txt
-        yellowBook = new ConcurrentHashMap<>();
         onlineThreads = new ConcurrentHashMap<>();
-        memo = new ConcurrentHashMap<>();
+
+        // "-Dskynett.memo.dir=path" holds the offline messages, in segments of "-Dskynett.memo.segment=N" MB,
+        // compacted every "-Dskynett.memo.compact=N" seconds
+        memoStore = new MemoStore(new File(System.getProperty("skynett.memo.dir", "Server/memo")),
+                Integer.getInteger("skynett.memo.segment", 8) << 20);
+        memoStore.start(Integer.getInteger("skynett.memo.compact", 30));
+        // "-Dskynett.memo.page=N" offline messages are sent at a time at login
+        memoPageSize = Integer.getInteger("skynett.memo.page", 50);
+        Log.info("===== " + memoStore.pendingCount() + " offline messages pending =====");
         
         //listenerChecklist = new ConcurrentHashMap<>();
-        File credential = new File("Server/credentials.txt");
-        Scanner myScanner = new Scanner(credential);
+        // the existing users of credentials.txt, found through its index as they log in
+        yellowBook = new CredentialStore(new File("Server/credentials.txt"), new File("Server/credentials.idx"));
+        yellowBook.start();
+        Log.info("===== " + yellowBook.size() + " accounts =====");
+
+        // the counters are kept anyway, "-Dskynett.admins=name,..." are the users who may see them with "stats"
+        metrics = new ServerMetrics(new ServerGauges(), fanOut);
+        metrics.register();
+        admins = new HashSet<>(Arrays.asList(System.getProperty("skynett.admins", "").split("\\s*,\\s*")));
 
-        // put all the username-password pairs into the map
-        while (myScanner.hasNextLine()) {
-            String data = myScanner.nextLine();
-            String[] dataSet = data.split("\\s+");
-            yellowBook.put(dataSet[0], new Account(dataSet[0], dataSet[1]));
+        // "-Dskynett.cluster.nodes=host:port,..." are the bus addresses of all the nodes of a cluster, in the same order
+        // on every node, this one is "-Dskynett.cluster.node=N" counting from 0. Each node has a directory of its own.
+        // "-Dskynett.cluster.secret=..." is a secret the nodes prove they share before the bus takes anything from them,
+        // without it a node has to connect from its address in the list.
+        String clusterNodes = System.getProperty("skynett.cluster.nodes");
+        if (clusterNodes != null) {
+            cluster = new Cluster(Integer.getInteger("skynett.cluster.node", 0), Cluster.parse(clusterNodes),
+                    System.getProperty("skynett.cluster.secret"), new ClusterNode());
+            cluster.start();
         }
 
-        myScanner.close();
+        // "-Dskynett.io=nio" serves every connection from a few selector event loops instead of one thread per connection
+        if (System.getProperty("skynett.io", "thread").equals("nio")) {
+            int loops = Integer.getInteger("skynett.loops", Runtime.getRuntime().availableProcessors());
+            int workers = Integer.getInteger("skynett.workers", 2 * Runtime.getRuntime().availableProcessors());
+            NioServer nioServer = new NioServer(serverPort, loops, workers, connection -> new ClientThread(connection));
+            Log.info("===== Server is running with " + loops + " event loops =====");
+            Log.info("===== Waiting for connection request from clients...=====");
+            nioServer.serve();
+            return;
+        }
+
+        // define server socket with the input port number, by default the host would be localhost i.e., 127.0.0.1
+        serverSocket = new ServerSocket(serverPort);
+
         // make serverSocket listen connection request from clients
-        System.out.println("===== Server is running =====");
-        System.out.println("===== Waiting for connection request from clients...=====");
+        Log.info("===== Server is running =====");
+        Log.info("===== Waiting for connection request from clients...=====");
 
         while (true) {
             // when new connection request reaches the server, then server socket establishes connection
@@ -563,7 +1653,7 @@ public class TCPServer {
             // for each user there would be one thread, all the request/response for that user would be processed in that thread
             // different users will be working in different thread which is multi-threading (i.e., concurrent)
             ClientThread clientThread = new ClientThread(clientSocket);
-            clientThread.start();
+            ServerThreads.start("client-" + clientSocket.getPort(), clientThread);
         }
     }
 }
\ No newline at end of file
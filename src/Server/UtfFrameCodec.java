@@ -0,0 +1,85 @@
+package Server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the frames written by DataOutputStream.writeUTF, i.e. an unsigned 2 bytes length followed by
+ * the string in modified UTF-8, so that the selector based server stays compatible with the existing clients.
+ */
+public class UtfFrameCodec {
+    public static final int HEADER_SIZE = 2;
+    public static final int MAX_PAYLOAD = 65535;
+
+    private UtfFrameCodec() {
+    }
+
+    // encode the given string into a length prefixed frame, ready to be written
+    public static ByteBuffer encode(String content) throws UTFDataFormatException {
+        int length = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        if (length > MAX_PAYLOAD) throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+
+        byte[] frame = new byte[HEADER_SIZE + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                frame[pos++] = (byte) c;
+            } else if (c > 0x07FF) {
+                frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    // length of the frame starting at the position of the buffer, -1 if the header has not fully arrived yet
+    public static int peekLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) return -1;
+        int pos = buffer.position();
+        return ((buffer.get(pos) & 0xFF) << 8) | (buffer.get(pos + 1) & 0xFF);
+    }
+
+    // decode length bytes of modified UTF-8 starting at offset
+    public static String decode(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int b = bytes[pos] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                pos += 1;
+            } else if ((b & 0xE0) == 0xC0) {
+                if (pos + 2 > end) throw new UTFDataFormatException("partial character at end of frame");
+                int b2 = bytes[pos + 1];
+                if ((b2 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte " + (pos - offset));
+                chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                pos += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                if (pos + 3 > end) throw new UTFDataFormatException("partial character at end of frame");
+                int b2 = bytes[pos + 1];
+                int b3 = bytes[pos + 2];
+                if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte " + (pos - offset));
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                pos += 3;
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + (pos - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,59 @@
+package Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads doing the password hashing, kept apart from the threads serving the connections.
+ * There are only a few of them and at most a fixed number of requests wait for them, a request beyond that is
+ * rejected at once rather than queued, so a burst of logins can neither take every core nor pile up unbounded.
+ */
+public class VerifierPool {
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public VerifierPool(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), task -> {
+            Thread thread = new Thread(task, "skynett-verifier-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            // chat traffic goes first when the cores are busy
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * run the task on the pool
+     * @throws RejectedExecutionException when the pool is saturated
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return result;
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public int getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,84 @@
+package Server;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The two protocols a client connection may speak, decided by the first bytes the client sends.
+ */
+public enum WireFormat {
+
+    // writeUTF strings, status code first
+    LEGACY {
+        @Override
+        public int frameSize(ByteBuffer buffer) {
+            int length = UtfFrameCodec.peekLength(buffer);
+            return length < 0 ? -1 : UtfFrameCodec.HEADER_SIZE + length;
+        }
+
+        @Override
+        public Frame decode(byte[] bytes, int offset, int size) throws IOException {
+            return new Frame(Opcode.COMMAND, UtfFrameCodec.decode(bytes, offset + UtfFrameCodec.HEADER_SIZE, size - UtfFrameCodec.HEADER_SIZE));
+        }
+
+        @Override
+        public ByteBuffer encode(Frame frame) throws IOException {
+            return UtfFrameCodec.encode(frame.toLegacy());
+        }
+    },
+
+    // length prefixed binary frames, see Protocol.Frame
+    BINARY {
+        @Override
+        public int frameSize(ByteBuffer buffer) throws ProtocolException {
+            return Frame.peekSize(buffer);
+        }
+
+        @Override
+        public Frame decode(byte[] bytes, int offset, int size) throws IOException {
+            return Frame.decode(bytes, offset + Frame.LENGTH_SIZE, size - Frame.LENGTH_SIZE);
+        }
+
+        @Override
+        public ByteBuffer encode(Frame frame) throws IOException {
+            return ByteBuffer.wrap(frame.encode());
+        }
+    };
+
+    // the size of the hello a binary client starts with, the magic bytes and the version
+    public static final int HELLO_SIZE = Frame.HELLO_MAGIC.length + 1;
+
+    /**
+     * size of the whole frame starting at the position of the buffer, -1 if its length has not fully arrived yet
+     */
+    public abstract int frameSize(ByteBuffer buffer) throws IOException;
+
+    /**
+     * the whole frame of the given size, a legacy message is a command
+     */
+    public abstract Frame decode(byte[] bytes, int offset, int size) throws IOException;
+
+    public abstract ByteBuffer encode(Frame frame) throws IOException;
+
+    /**
+     * tell the protocol from the first bytes of a connection, null while too few bytes have arrived to tell
+     */
+    public static WireFormat detect(ByteBuffer buffer) {
+        int pos = buffer.position();
+        // a writeUTF frame that long can not be the first message of a legacy client
+        for (int i = 0; i < Frame.HELLO_MAGIC.length; i++) {
+            if (buffer.remaining() <= i) return null;
+            if (buffer.get(pos + i) != Frame.HELLO_MAGIC[i]) return LEGACY;
+        }
+        return buffer.remaining() >= HELLO_SIZE ? BINARY : null;
+    }
+
+    // the answer of the server to the hello of a binary client
+    public static Frame helloReply() {
+        return new Frame(Opcode.HELLO, new String[] { String.valueOf(Frame.VERSION) }, "");
+    }
+}